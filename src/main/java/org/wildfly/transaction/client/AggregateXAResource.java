@@ -0,0 +1,390 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.wildfly.common.Assert;
+import org.wildfly.transaction.client._private.Log;
+import org.wildfly.transaction.client._private.Stages;
+
+/**
+ * An XA resource which stands in for every subordinate of a transaction that was outflowed to more than one location.
+ * Each completion phase is sent to all of the subordinates at once, and the resulting votes and errors are merged
+ * into a single outcome for the transaction manager.
+ */
+final class AggregateXAResource implements XAResource, Serializable {
+    private static final long serialVersionUID = - 3087393414208564713L;
+
+    private static final SubordinateXAResource[] NO_RESOURCES = new SubordinateXAResource[0];
+
+    /**
+     * All of the subordinates which were added to this resource.
+     */
+    private final List<SubordinateXAResource> members = new CopyOnWriteArrayList<>();
+    /**
+     * The subordinates which still have to be told the outcome of the transaction.
+     */
+    private final List<SubordinateXAResource> pending = new CopyOnWriteArrayList<>();
+    private volatile int timeout = LocalTransactionContext.DEFAULT_TXN_TIMEOUT;
+    private volatile Xid xid;
+
+    AggregateXAResource() {
+    }
+
+    AggregateXAResource(final SubordinateXAResource[] recovered) {
+        for (SubordinateXAResource resource : recovered) {
+            members.add(resource);
+            pending.add(resource);
+        }
+    }
+
+    /**
+     * Add a subordinate to this resource.  If this resource was already started, the subordinate is started with the
+     * same XID.
+     *
+     * @param resource the subordinate resource (must not be {@code null})
+     * @param remainingTime the remaining transaction time, in seconds
+     * @throws XAException if the subordinate could not be started
+     */
+    void addMember(final SubordinateXAResource resource, final int remainingTime) throws XAException {
+        final Xid xid = this.xid;
+        if (xid != null) {
+            resource.setTransactionTimeout(remainingTime);
+            resource.start(xid, TMNOFLAGS);
+        }
+        members.add(resource);
+        pending.add(resource);
+    }
+
+    public void start(final Xid xid, final int flags) throws XAException {
+        if (flags == TMJOIN) {
+            // should be impossible
+            throw Assert.unreachableCode();
+        }
+        for (SubordinateXAResource member : members) {
+            member.setTransactionTimeout(timeout);
+            member.start(xid, flags);
+        }
+        this.xid = xid;
+    }
+
+    public void end(final Xid xid, final int flags) throws XAException {
+        for (SubordinateXAResource member : members) {
+            member.end(xid, flags);
+        }
+    }
+
+    public void beforeCompletion(final Xid xid) throws XAException {
+        final SubordinateXAResource[] members = this.members.toArray(NO_RESOURCES);
+        final List<CompletionStage<Void>> stages = new ArrayList<>(members.length);
+        for (SubordinateXAResource member : members) {
+            stages.add(member.startBeforeCompletion(xid));
+        }
+        XAException failure = null;
+        for (CompletionStage<Void> stage : stages) {
+            try {
+                Stages.await(stage);
+            } catch (XAException e) {
+                failure = addFailure(failure, e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public int prepare(final Xid xid) throws XAException {
+        return prepare(xid, false);
+    }
+
+    private int prepare(final Xid xid, final boolean keepRegistered) throws XAException {
+        final SubordinateXAResource[] pending = this.pending.toArray(NO_RESOURCES);
+        final List<CompletionStage<Integer>> stages = new ArrayList<>(pending.length);
+        for (SubordinateXAResource member : pending) {
+            stages.add(member.startPrepare(xid));
+        }
+        XAException failure = null;
+        for (int i = 0; i < pending.length; i ++) {
+            try {
+                if (pending[i].finishPrepare(stages.get(i), keepRegistered) == XA_RDONLY) {
+                    // nothing more to do for this one
+                    this.pending.remove(pending[i]);
+                }
+            } catch (XAException e) {
+                // a rollback vote takes precedence over other errors
+                failure = failure == null || isRollbackCode(e.errorCode) && ! isRollbackCode(failure.errorCode) ? addFailure(e, failure) : addFailure(failure, e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return this.pending.isEmpty() ? XA_RDONLY : XA_OK;
+    }
+
+    public void commit(final Xid xid, final boolean onePhase) throws XAException {
+        final boolean prepared;
+        if (onePhase && pending.size() > 1) {
+            // should not happen as a TwoPhaseGuard is enlisted along with a second subordinate; the subordinates are
+            // prepared so that any of them can still veto the commit, but as no commit decision is logged anywhere,
+            // an outcome which is not known for every subordinate is reported as a hazard rather than retried
+            try {
+                if (prepare(xid, true) == XA_RDONLY) {
+                    return;
+                }
+            } catch (XAException e) {
+                try {
+                    rollback(xid);
+                } catch (XAException e1) {
+                    e.addSuppressed(e1);
+                }
+                if (isRollbackCode(e.errorCode)) {
+                    throw e;
+                }
+                final XAException rb = new XAException(XAException.XA_RBROLLBACK);
+                rb.initCause(e);
+                throw rb;
+            }
+            prepared = true;
+        } else {
+            prepared = false;
+        }
+        final SubordinateXAResource[] pending = this.pending.toArray(NO_RESOURCES);
+        final List<CompletionStage<Void>> stages = new ArrayList<>(pending.length);
+        for (SubordinateXAResource member : pending) {
+            stages.add(member.startCommit(xid, onePhase && ! prepared));
+        }
+        final List<XAException> failures = new ArrayList<>();
+        boolean committed = false;
+        for (int i = 0; i < pending.length; i ++) {
+            try {
+                pending[i].finishCommit(stages.get(i), onePhase);
+                this.pending.remove(pending[i]);
+                committed = true;
+            } catch (XAException e) {
+                if (e.errorCode == XAException.XA_HEURCOM) {
+                    committed = true;
+                }
+                failures.add(e);
+            }
+        }
+        if (! failures.isEmpty()) {
+            throw mergeCompletionFailures(failures, committed, false, ! prepared);
+        }
+    }
+
+    public void rollback(final Xid xid) throws XAException {
+        final SubordinateXAResource[] pending = this.pending.toArray(NO_RESOURCES);
+        final List<CompletionStage<Void>> stages = new ArrayList<>(pending.length);
+        for (SubordinateXAResource member : pending) {
+            stages.add(member.startRollback(xid));
+        }
+        final List<XAException> failures = new ArrayList<>();
+        boolean rolledBack = false;
+        for (int i = 0; i < pending.length; i ++) {
+            try {
+                pending[i].finishRollback(stages.get(i));
+                this.pending.remove(pending[i]);
+                rolledBack = true;
+            } catch (XAException e) {
+                if (e.errorCode == XAException.XAER_NOTA) {
+                    // the subordinate no longer knows the transaction, so there is nothing left to roll back
+                    this.pending.remove(pending[i]);
+                    rolledBack = true;
+                } else {
+                    if (e.errorCode == XAException.XA_HEURRB) {
+                        rolledBack = true;
+                    }
+                    failures.add(e);
+                }
+            }
+        }
+        if (! failures.isEmpty()) {
+            throw mergeCompletionFailures(failures, false, rolledBack, true);
+        }
+    }
+
+    public void forget(final Xid xid) throws XAException {
+        final SubordinateXAResource[] pending = this.pending.toArray(NO_RESOURCES);
+        final List<CompletionStage<Void>> stages = new ArrayList<>(pending.length);
+        for (SubordinateXAResource member : pending) {
+            stages.add(member.startForget(xid));
+        }
+        XAException failure = null;
+        for (int i = 0; i < pending.length; i ++) {
+            try {
+                Stages.await(stages.get(i));
+                this.pending.remove(pending[i]);
+            } catch (XAException e) {
+                failure = addFailure(failure, e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public Xid[] recover(final int flag) throws XAException {
+        // recovery is done through the individual subordinate resources
+        return SimpleXid.NO_XIDS;
+    }
+
+    public boolean isSameRM(final XAResource xaRes) throws XAException {
+        return xaRes == this;
+    }
+
+    public int getTransactionTimeout() {
+        return timeout;
+    }
+
+    public boolean setTransactionTimeout(final int seconds) throws XAException {
+        if (seconds < 0) {
+            throw Log.log.negativeTxnTimeoutXa(XAException.XAER_INVAL);
+        }
+        timeout = seconds == 0 ? LocalTransactionContext.DEFAULT_TXN_TIMEOUT : seconds;
+        return true;
+    }
+
+    Object writeReplace() {
+        final SubordinateXAResource[] pending = this.pending.toArray(NO_RESOURCES);
+        final SerializedXAResource[] serialized = new SerializedXAResource[pending.length];
+        for (int i = 0; i < pending.length; i ++) {
+            serialized[i] = new SerializedXAResource(pending[i].getLocation(), pending[i].getParentName());
+        }
+        return new SerializedAggregateXAResource(serialized);
+    }
+
+    public String toString() {
+        return Log.log.aggregateXaResource(members.size());
+    }
+
+    private static boolean isRollbackCode(int errorCode) {
+        return errorCode >= XAException.XA_RBBASE && errorCode <= XAException.XA_RBEND;
+    }
+
+    private static XAException addFailure(XAException failure, XAException next) {
+        if (failure == null) {
+            return next;
+        }
+        failure.addSuppressed(next);
+        return failure;
+    }
+
+    /**
+     * Merge the failures of a completion phase into one exception carrying the most accurate outcome code.
+     *
+     * @param failures the failures (not empty)
+     * @param committed {@code true} if at least one subordinate committed
+     * @param rolledBack {@code true} if at least one subordinate rolled back
+     * @param retried {@code true} if the transaction manager retries the phase after a transient failure
+     * @return the merged exception
+     */
+    private static XAException mergeCompletionFailures(final List<XAException> failures, boolean committed, boolean rolledBack, final boolean retried) {
+        boolean mixed = false;
+        boolean hazard = false;
+        XAException transientFailure = null;
+        for (XAException failure : failures) {
+            switch (failure.errorCode) {
+                case XAException.XA_HEURMIX: mixed = true; break;
+                case XAException.XA_HEURHAZ: hazard = true; break;
+                case XAException.XA_HEURCOM: committed = true; break;
+                case XAException.XA_HEURRB: rolledBack = true; break;
+                default: {
+                    if (isRollbackCode(failure.errorCode)) {
+                        rolledBack = true;
+                    } else if (transientFailure == null) {
+                        transientFailure = failure;
+                    }
+                    break;
+                }
+            }
+        }
+        final int errorCode;
+        if (mixed || committed && rolledBack) {
+            errorCode = XAException.XA_HEURMIX;
+        } else if (hazard || transientFailure != null && ! retried) {
+            // nobody will find out how the remaining subordinates complete
+            errorCode = XAException.XA_HEURHAZ;
+        } else if (transientFailure != null) {
+            // some subordinates have yet to complete; the remaining ones will be retried
+            errorCode = transientFailure.errorCode;
+        } else {
+            // every failure agrees on the outcome
+            errorCode = failures.get(0).errorCode;
+        }
+        final XAException merged = new XAException(errorCode);
+        merged.initCause(failures.get(0));
+        for (int i = 1; i < failures.size(); i ++) {
+            merged.addSuppressed(failures.get(i));
+        }
+        return merged;
+    }
+
+    /**
+     * A resource which is enlisted next to an aggregate of more than one subordinate, so that the transaction manager
+     * does not commit the aggregate in one phase but runs two phases, logging its commit decision in between.  It
+     * takes no part in the outcome itself.
+     */
+    static final class TwoPhaseGuard implements XAResource, Serializable {
+        private static final long serialVersionUID = 2937528409715625093L;
+
+        public void start(final Xid xid, final int flags) {
+        }
+
+        public void end(final Xid xid, final int flags) {
+        }
+
+        public int prepare(final Xid xid) {
+            return XA_RDONLY;
+        }
+
+        public void commit(final Xid xid, final boolean onePhase) {
+        }
+
+        public void rollback(final Xid xid) {
+        }
+
+        public void forget(final Xid xid) {
+        }
+
+        public Xid[] recover(final int flag) {
+            return SimpleXid.NO_XIDS;
+        }
+
+        public boolean isSameRM(final XAResource xaRes) {
+            return xaRes == this;
+        }
+
+        public int getTransactionTimeout() {
+            return 0;
+        }
+
+        public boolean setTransactionTimeout(final int seconds) {
+            return false;
+        }
+    }
+}
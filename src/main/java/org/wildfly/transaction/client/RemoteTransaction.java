@@ -20,12 +20,12 @@ package org.wildfly.transaction.client;
 
 import java.net.URI;
 import java.security.AccessController;
-import java.security.GeneralSecurityException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicReference;
 
-import javax.net.ssl.SSLContext;
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
 import javax.transaction.RollbackException;
@@ -35,11 +35,11 @@ import javax.transaction.SystemException;
 import javax.transaction.xa.XAResource;
 
 import org.wildfly.common.Assert;
-import org.wildfly.security.auth.client.AuthenticationConfiguration;
 import org.wildfly.security.auth.client.AuthenticationContext;
 import org.wildfly.security.auth.client.AuthenticationContextConfigurationClient;
 import org.wildfly.transaction.TransactionPermission;
 import org.wildfly.transaction.client._private.Log;
+import org.wildfly.transaction.client.spi.RemoteTransactionPeer;
 import org.wildfly.transaction.client.spi.RemoteTransactionProvider;
 import org.wildfly.transaction.client.spi.SimpleTransactionControl;
 
@@ -211,15 +211,18 @@ public final class RemoteTransaction extends AbstractTransaction {
         if (provider == null) {
             throw Log.log.noProviderForUri(location);
         }
-        final AuthenticationContextConfigurationClient client = CLIENT;
-        final AuthenticationConfiguration authenticationConfiguration = client.getAuthenticationConfiguration(location, authenticationContext, - 1, "jta", "jboss");
-        final SSLContext sslContext;
+        final RemoteTransactionPeer peer = provider.getPeerHandle(location, null, null);
+        final SimpleTransactionControl control;
         try {
-            sslContext = client.getSSLContext(location, authenticationContext, "jta", "jboss");
-        } catch (GeneralSecurityException e) {
-            throw new IllegalArgumentException(e);
+            // the peer matches the authentication rules against the context of this transaction, and remembers the outcome
+            control = authenticationContext.run((PrivilegedExceptionAction<SimpleTransactionControl>) () -> peer.begin(getEstimatedRemainingTime()));
+        } catch (PrivilegedActionException e) {
+            final Exception cause = e.getException();
+            if (cause instanceof SystemException) {
+                throw (SystemException) cause;
+            }
+            throw new IllegalArgumentException(cause);
         }
-        final SimpleTransactionControl control = provider.getPeerHandle(location, sslContext, authenticationConfiguration).begin(getEstimatedRemainingTime());
         try {
             stateRef.get().join(stateRef, location, control);
         } catch (Throwable t) {
@@ -492,4 +495,3 @@ public final class RemoteTransaction extends AbstractTransaction {
         }
     }
 }
-
@@ -0,0 +1,42 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client;
+
+import java.io.Serializable;
+
+/**
+ * The serialized form of an {@link AggregateXAResource}, which resolves to an aggregate of its resolved members.
+ */
+final class SerializedAggregateXAResource implements Serializable {
+    private static final long serialVersionUID = 6427981354925512046L;
+
+    private final SerializedXAResource[] members;
+
+    SerializedAggregateXAResource(final SerializedXAResource[] members) {
+        this.members = members;
+    }
+
+    Object readResolve() {
+        final SubordinateXAResource[] resources = new SubordinateXAResource[members.length];
+        for (int i = 0; i < members.length; i ++) {
+            resources[i] = (SubordinateXAResource) members[i].readResolve();
+        }
+        return new AggregateXAResource(resources);
+    }
+}
@@ -21,10 +21,15 @@ package org.wildfly.transaction.client;
 import static java.lang.Integer.signum;
 import static java.lang.Math.min;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 
 import javax.transaction.xa.Xid;
 
+import org.wildfly.common.Assert;
+import org.wildfly.transaction.client._private.XidAccess;
+
 /**
  * A special simplified XID implementation which can only be compared with itself.
  *
@@ -50,24 +55,60 @@ public final class SimpleXid implements Xid, Comparable<SimpleXid> {
     /**
      * A completely empty {@code SimpleXid}, which sorts below all other {@code SimpleXid} instances.
      */
-    public static final SimpleXid EMPTY = new SimpleXid(0, NO_BYTES, NO_BYTES, false);
+    public static final SimpleXid EMPTY = new SimpleXid(0, NO_BYTES, 0);
+
+    static {
+        XidAccess.install(new XidAccess() {
+            public SimpleXid wrap(final int formatId, final byte[] ids, final int globalIdLength) {
+                Assert.checkNotNullParam("ids", ids);
+                Assert.checkMinimumParameter("globalIdLength", 0, globalIdLength);
+                Assert.checkMaximumParameter("globalIdLength", ids.length, globalIdLength);
+                return new SimpleXid(formatId, ids, globalIdLength);
+            }
+
+            public int getGlobalTransactionIdLength(final SimpleXid xid) {
+                return xid.globalIdLength;
+            }
+
+            public int getBranchQualifierLength(final SimpleXid xid) {
+                return xid.ids.length - xid.globalIdLength;
+            }
+
+            public void writeIdsTo(final SimpleXid xid, final OutputStream os) throws IOException {
+                os.write(xid.ids);
+            }
+        });
+    }
 
     private final int formatId;
-    private final byte[] globalId;
-    private final byte[] branchId;
+    // the global transaction ID followed by the branch qualifier
+    private final byte[] ids;
+    private final int globalIdLength;
     private final int hashCode;
+    // the XID without its branch qualifier, created on first use; racy but idempotent
+    private SimpleXid withoutBranch;
 
     public SimpleXid(final int formatId, final byte[] gtId, final byte[] bq) {
-        this(formatId, gtId, bq, true);
+        this(formatId, pack(gtId, bq), gtId.length);
     }
 
-    private SimpleXid(final int formatId, final byte[] gtId, final byte[] bq, boolean clone) {
+    private SimpleXid(final int formatId, final byte[] ids, final int globalIdLength) {
         this.formatId = formatId;
-        final int globalIdLength = gtId.length;
-        final int branchIdLength = bq.length;
-        globalId = globalIdLength > 0 ? clone ? gtId.clone() : gtId : NO_BYTES;
-        branchId = branchIdLength > 0 ? clone ? bq.clone() : bq : NO_BYTES;
-        this.hashCode = (formatId * 31 + Arrays.hashCode(globalId)) * 31 + Arrays.hashCode(branchId);
+        this.ids = ids.length == 0 ? NO_BYTES : ids;
+        this.globalIdLength = globalIdLength;
+        // the hash code of the XID without its branch qualifier, whose branch hash is 1
+        final int globalIdHashCode = (formatId * 31 + hashCode(ids, 0, globalIdLength)) * 31 + 1;
+        hashCode = globalIdHashCode - 1 + hashCode(ids, globalIdLength, ids.length);
+        if (ids.length == globalIdLength) {
+            withoutBranch = this;
+        }
+    }
+
+    private static byte[] pack(final byte[] gtId, final byte[] bq) {
+        final byte[] ids = new byte[gtId.length + bq.length];
+        System.arraycopy(gtId, 0, ids, 0, gtId.length);
+        System.arraycopy(bq, 0, ids, gtId.length, bq.length);
+        return ids;
     }
 
     public int getFormatId() {
@@ -75,13 +116,12 @@ public final class SimpleXid implements Xid, Comparable<SimpleXid> {
     }
 
     public byte[] getGlobalTransactionId() {
-        byte[] globalId = this.globalId;
-        return globalId.length == 0 ? globalId : globalId.clone();
+        return globalIdLength == 0 ? NO_BYTES : Arrays.copyOf(ids, globalIdLength);
     }
 
     public byte[] getBranchQualifier() {
-        byte[] branchId = this.branchId;
-        return branchId.length == 0 ? branchId : branchId.clone();
+        final byte[] ids = this.ids;
+        return ids.length == globalIdLength ? NO_BYTES : Arrays.copyOfRange(ids, globalIdLength, ids.length);
     }
 
     public boolean equals(final Object obj) {
@@ -89,15 +129,15 @@ public final class SimpleXid implements Xid, Comparable<SimpleXid> {
     }
 
     public boolean equals(final SimpleXid obj) {
-        return obj != null && hashCode == obj.hashCode && formatId == obj.formatId && Arrays.equals(globalId, obj.globalId) && Arrays.equals(branchId, obj.branchId);
+        return obj == this || obj != null && hashCode == obj.hashCode && formatId == obj.formatId && globalIdLength == obj.globalIdLength && Arrays.equals(ids, obj.ids);
     }
 
     public SimpleXid withoutBranch() {
-        if (branchId.length == 0) {
-            return this;
-        } else {
-            return new SimpleXid(formatId, globalId, NO_BYTES, false);
+        SimpleXid withoutBranch = this.withoutBranch;
+        if (withoutBranch == null) {
+            this.withoutBranch = withoutBranch = new SimpleXid(formatId, Arrays.copyOf(ids, globalIdLength), globalIdLength);
         }
+        return withoutBranch;
     }
 
     public int hashCode() {
@@ -110,8 +150,8 @@ public final class SimpleXid implements Xid, Comparable<SimpleXid> {
 
     public int compareTo(final SimpleXid o) {
         int res = signum(formatId - o.formatId);
-        if (res == 0) res = compareByteArrays(globalId, o.globalId);
-        if (res == 0) res = compareByteArrays(branchId, o.branchId);
+        if (res == 0) res = compareByteArrays(ids, 0, globalIdLength, o.ids, 0, o.globalIdLength);
+        if (res == 0) res = compareByteArrays(ids, globalIdLength, ids.length, o.ids, o.globalIdLength, o.ids.length);
         assert (res == 0) == equals(o);
         return res;
     }
@@ -128,16 +168,15 @@ public final class SimpleXid implements Xid, Comparable<SimpleXid> {
 
     private void toHexString(StringBuilder builder, char separator) {
         builder.append(Integer.toHexString(formatId)).append(separator);
-        for (final byte x : globalId) {
-            final int v = x & 0xff;
-            if (v < 16) {
-                builder.append('0');
-            }
-            builder.append(Integer.toHexString(v));
-        }
+        toHexString(builder, 0, globalIdLength);
         builder.append(separator);
-        for (final byte x : branchId) {
-            final int v = x & 0xff;
+        toHexString(builder, globalIdLength, ids.length);
+    }
+
+    private void toHexString(StringBuilder builder, int from, int to) {
+        final byte[] ids = this.ids;
+        for (int i = from; i < to; i ++) {
+            final int v = ids[i] & 0xff;
             if (v < 16) {
                 builder.append('0');
             }
@@ -145,18 +184,27 @@ public final class SimpleXid implements Xid, Comparable<SimpleXid> {
         }
     }
 
-    private static int compareByteArrays(byte[] a1, byte[] a2) {
-        final int l1 = a1.length;
-        final int l2 = a2.length;
+    private static int compareByteArrays(byte[] a1, int from1, int to1, byte[] a2, int from2, int to2) {
+        final int l1 = to1 - from1;
+        final int l2 = to2 - from2;
         int minLen = min(l1, l2);
         int res;
         for (int i = 0; i < minLen; i ++) {
-            res = signum((a1[i] & 0xff) - (a2[i] & 0xff));
+            res = signum((a1[from1 + i] & 0xff) - (a2[from2 + i] & 0xff));
             if (res != 0) return res;
         }
         return signum(l1 - l2);
     }
 
+    private static int hashCode(byte[] a, int from, int to) {
+        // same as Arrays.hashCode() of the range
+        int result = 1;
+        for (int i = from; i < to; i ++) {
+            result = 31 * result + a[i];
+        }
+        return result;
+    }
+
     public String toString() {
         StringBuilder b = new StringBuilder();
         b.append("XID [");
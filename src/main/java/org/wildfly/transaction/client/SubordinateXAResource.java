@@ -20,9 +20,12 @@ package org.wildfly.transaction.client;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
+import static org.wildfly.transaction.client._private.Stages.await;
 
 import java.io.Serializable;
 import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -51,6 +54,8 @@ final class SubordinateXAResource implements XAResource, XARecoverable, Serializ
     private long startTime = 0L;
     private volatile Xid xid;
     private int capturedTimeout;
+    // set when before-completion is to be sent along with the prepare
+    private transient volatile boolean beforeCompletionDeferred;
 
     private final AtomicInteger stateRef = new AtomicInteger(0);
 
@@ -140,38 +145,156 @@ final class SubordinateXAResource implements XAResource, XARecoverable, Serializ
     }
 
     public void beforeCompletion(final Xid xid) throws XAException {
-        if (commitToEnlistment()) lookup(xid).beforeCompletion();
+        await(startBeforeCompletion(xid));
     }
 
     public int prepare(final Xid xid) throws XAException {
+        return finishPrepare(startPrepare(xid), false);
+    }
+
+    public void commit(final Xid xid, final boolean onePhase) throws XAException {
+        finishCommit(startCommit(xid, onePhase), onePhase);
+    }
+
+    public void rollback(final Xid xid) throws XAException {
+        finishRollback(startRollback(xid));
+    }
+
+    public void forget(final Xid xid) throws XAException {
+        await(startForget(xid));
+    }
+
+    CompletionStage<Void> startBeforeCompletion(final Xid xid) {
+        try {
+            if (! commitToEnlistment()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            final SubordinateTransactionControl control = lookup(xid);
+            if (control.isCombinedPrepareSupported()) {
+                // save a round trip by sending it with the prepare (or the one-phase commit)
+                beforeCompletionDeferred = true;
+                return CompletableFuture.completedFuture(null);
+            }
+            return control.beforeCompletionAsync();
+        } catch (XAException | RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    CompletionStage<Integer> startPrepare(final Xid xid) {
+        try {
+            if (! commitToEnlistment()) {
+                return CompletableFuture.completedFuture(Integer.valueOf(XA_RDONLY));
+            }
+            if (resourceRegistry != null) {
+                resourceRegistry.resourcePreparing(this);
+            }
+            final SubordinateTransactionControl control = lookup(xid);
+            if (beforeCompletionDeferred) {
+                beforeCompletionDeferred = false;
+                return control.beforeCompletionAndPrepareAsync();
+            }
+            return control.prepareAsync();
+        } catch (XAException | RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * Wait for a prepare started by {@link #startPrepare(Xid)} and update the resource registry accordingly.
+     *
+     * @param stage the prepare stage
+     * @param keepRegistered {@code true} to keep the resource in the registry after a successful prepare, in which
+     *  case the registration is cleared by a subsequent {@link #finishCommit(CompletionStage, boolean)} (a read-only
+     *  vote always clears it)
+     * @return the prepare vote
+     * @throws XAException if the prepare failed
+     */
+    int finishPrepare(final CompletionStage<Integer> stage, final boolean keepRegistered) throws XAException {
         final int result;
         try {
-            result = commitToEnlistment() ? lookup(xid).prepare() : XA_RDONLY;
+            result = await(stage).intValue();
         } catch (XAException | RuntimeException exception) {
             if (resourceRegistry != null)
                 resourceRegistry.resourceInDoubt(this);
             throw exception;
         }
-        if (resourceRegistry != null)
+        if (resourceRegistry != null && (! keepRegistered || result == XA_RDONLY))
             resourceRegistry.removeResource(this);
         return result;
     }
 
-    public void commit(final Xid xid, final boolean onePhase) throws XAException {
+    CompletionStage<Void> startCommit(final Xid xid, final boolean onePhase) {
+        try {
+            if (! commitToEnlistment()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            final SubordinateTransactionControl control = lookup(xid);
+            if (onePhase && beforeCompletionDeferred) {
+                beforeCompletionDeferred = false;
+                return beforeCompletionAndCommit(control);
+            }
+            return control.commitAsync(onePhase);
+        } catch (XAException | RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    private static CompletionStage<Void> beforeCompletionAndCommit(final SubordinateTransactionControl control) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        control.beforeCompletionAsync().whenComplete((ignored, t) -> {
+            if (t == null) {
+                control.commitAsync(true).whenComplete((ignored2, t2) -> {
+                    if (t2 == null) {
+                        future.complete(null);
+                    } else {
+                        future.completeExceptionally(t2);
+                    }
+                });
+            } else {
+                // before-completion failed, so the transaction cannot commit
+                control.rollbackAsync().whenComplete((ignored2, t2) -> {
+                    final XAException rb = new XAException(XAException.XA_RBROLLBACK);
+                    rb.initCause(t);
+                    if (t2 != null) rb.addSuppressed(t2);
+                    future.completeExceptionally(rb);
+                });
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Wait for a commit started by {@link #startCommit(Xid, boolean)}.
+     *
+     * @param stage the commit stage
+     * @param registered {@code true} if the resource is still in the registry and must be cleared or flagged in doubt
+     * @throws XAException if the commit failed
+     */
+    void finishCommit(final CompletionStage<Void> stage, final boolean registered) throws XAException {
         try {
-            if (commitToEnlistment()) lookup(xid).commit(onePhase);
+            await(stage);
         } catch (XAException | RuntimeException exception) {
-            if (onePhase && resourceRegistry != null)
+            if (registered && resourceRegistry != null)
                 resourceRegistry.resourceInDoubt(this);
             throw exception;
         }
-        if (onePhase && resourceRegistry != null)
+        if (registered && resourceRegistry != null)
             resourceRegistry.removeResource(this);
     }
 
-    public void rollback(final Xid xid) throws XAException {
+    CompletionStage<Void> startRollback(final Xid xid) {
+        beforeCompletionDeferred = false;
         try {
-            if (commitToEnlistment()) lookup(xid).rollback();
+            return commitToEnlistment() ? lookup(xid).rollbackAsync() : CompletableFuture.completedFuture(null);
+        } catch (XAException | RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    void finishRollback(final CompletionStage<Void> stage) throws XAException {
+        try {
+            await(stage);
         } catch (XAException | RuntimeException e) {
             if (resourceRegistry != null)
                 resourceRegistry.resourceInDoubt(this);
@@ -181,12 +304,23 @@ final class SubordinateXAResource implements XAResource, XARecoverable, Serializ
             resourceRegistry.removeResource(this);
     }
 
-    public void forget(final Xid xid) throws XAException {
-        if (commitToEnlistment()) lookup(xid).forget();
+    CompletionStage<Void> startForget(final Xid xid) {
+        try {
+            return commitToEnlistment() ? lookup(xid).forgetAsync() : CompletableFuture.completedFuture(null);
+        } catch (XAException | RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    static <T> CompletionStage<T> failed(final Throwable cause) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
     }
 
     private SubordinateTransactionControl lookup(final Xid xid) throws XAException {
-        return getProvider().getPeerHandleForXa(location, null, null).lookupXid(xid);
+        // a resource which was never started (i.e. a recovered one) has no known deadline
+        return getProvider().getPeerHandleForXa(location, null, null).lookupXid(xid, capturedTimeout == 0 ? -1 : getRemainingTime());
     }
 
     private RemoteTransactionProvider getProvider() {
@@ -201,6 +335,14 @@ final class SubordinateXAResource implements XAResource, XARecoverable, Serializ
         return getProvider().getPeerHandleForXa(location, null, null).recover(flag, parentName);
     }
 
+    URI getLocation() {
+        return location;
+    }
+
+    String getParentName() {
+        return parentName;
+    }
+
     public boolean isSameRM(final XAResource xaRes) throws XAException {
         return xaRes instanceof SubordinateXAResource && location.equals(((SubordinateXAResource) xaRes).location);
     }
@@ -18,7 +18,10 @@
 
 package org.wildfly.transaction.client;
 
+import static java.security.AccessController.doPrivileged;
+
 import java.net.URI;
+import java.security.PrivilegedAction;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -33,11 +36,19 @@ import org.wildfly.transaction.client._private.Log;
 
 final class XAOutflowedResources {
 
+    /**
+     * If {@code true}, all of the subordinates of a transaction are enlisted as one resource, which completes them
+     * all in parallel rather than one after another.
+     */
+    static final boolean AGGREGATE_OUTFLOW = Boolean.parseBoolean(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.outflow.aggregate", "false")));
+
     private final LocalTransaction transaction;
     private final ConcurrentMap<Key, SubordinateXAResource> enlistments = new ConcurrentHashMap<>();
 
     // protected by {@code this}
     private int enlistedSubordinates = 0;
+    // protected by {@code this}
+    private AggregateXAResource aggregate;
 
     XAOutflowedResources(final LocalTransaction transaction) {
         this.transaction = transaction;
@@ -59,6 +70,11 @@ final class XAOutflowedResources {
             if (resourceRegistry != null) {
                 resourceRegistry.addResource(xaResource, location);
             }
+            if (AGGREGATE_OUTFLOW) {
+                enlistAggregated(location, xaResource);
+                enlistments.put(key, xaResource);
+                return xaResource;
+            }
             if (! transaction.enlistResource(xaResource)) {
                 throw Log.log.couldNotEnlist();
             }
@@ -93,6 +109,51 @@ final class XAOutflowedResources {
         }
     }
 
+    private void enlistAggregated(final URI location, final SubordinateXAResource xaResource) throws SystemException, RollbackException {
+        AggregateXAResource aggregate = this.aggregate;
+        if (aggregate == null) {
+            aggregate = new AggregateXAResource();
+            if (! transaction.enlistResource(aggregate)) {
+                throw Log.log.couldNotEnlist();
+            }
+            this.aggregate = aggregate;
+            final AggregateXAResource finalAggregate = aggregate;
+            int status = transaction.getStatus();
+            if (status == Status.STATUS_ACTIVE || status == Status.STATUS_MARKED_ROLLBACK) try {
+                transaction.registerSynchronization(new Synchronization() {
+                    public void beforeCompletion() {
+                        try {
+                            finalAggregate.beforeCompletion(transaction.getXid());
+                        } catch (XAException e) {
+                            throw new SynchronizationException(e);
+                        }
+                    }
+
+                    public void afterCompletion(final int status) {
+                        // ignored
+                    }
+                });
+            } catch (IllegalStateException e) {
+                status = transaction.getStatus();
+                if (status == Status.STATUS_ACTIVE || status == Status.STATUS_MARKED_ROLLBACK) {
+                    throw e;
+                }
+                // else we don't care
+            }
+        }
+        try {
+            aggregate.addMember(xaResource, transaction.getEstimatedRemainingTime());
+        } catch (XAException e) {
+            throw Log.log.subordinateEnlistmentFailed(location, e);
+        }
+        if (enlistedSubordinates ++ == 1) {
+            // the subordinates cannot be committed atomically in one phase
+            if (! transaction.enlistResource(new AggregateXAResource.TwoPhaseGuard())) {
+                throw Log.log.couldNotEnlist();
+            }
+        }
+    }
+
     int getEnlistedSubordinates() {
         synchronized (this) {
             return enlistedSubordinates;
@@ -52,6 +52,16 @@ public abstract class XAResourceRegistry {
      */
     protected abstract void removeResource(XAResource resource) throws XAException;
 
+    /**
+     * Notifies that the previously added resource is about to be prepared, so that its record is durable by then if
+     * it is not already. The default implementation does nothing.
+     *
+     * @param resource the resource
+     * @throws XAException if there is a problem recording this resource
+     */
+    protected void resourcePreparing(XAResource resource) throws XAException {
+    }
+
     /**
      * Flags the previously added resource as in doubt, meaning that it failed to complete prepare, rollback or commit.
      * It can be invoked more than once for the same resource if that resource repeatedly fails to perform those
@@ -61,6 +61,9 @@ public interface Log extends BasicLogger {
     @Message(value = "Subordinate XAResource at %s")
     String subordinateXaResource(URI location);
 
+    @Message(value = "Aggregate XAResource for %d subordinate(s)")
+    String aggregateXaResource(int count);
+
     // Debug
 
     @LogMessage(level = Logger.Level.DEBUG)
@@ -413,4 +416,63 @@ public interface Log extends BasicLogger {
     @LogMessage(level = Logger.Level.WARN)
     @Message(id = 99, value = "Error while removing imported transaction of xid %s from the underlying transaction manager")
     void cannotRemoveImportedTransaction(Xid xid, @Cause XAException e);
+
+    @Message(id = 100, value = "Connection to the peer was closed before a response was received")
+    XAException connectionClosedXa(@Field int errorCode);
+
+    @Message(id = 101, value = "Failed to enlist subordinate resource at %s")
+    SystemException subordinateEnlistmentFailed(URI location, @Cause XAException cause);
+
+    @Message(id = 102, value = "Transaction %s was not processed because its deadline has passed")
+    XAException deadlinePassedXa(@Field int errorCode, Xid xid);
+
+    @Message(id = 103, value = "No response was received from the peer within %d ms")
+    XAException responseTimedOutXa(@Field int errorCode, long millis);
+
+    @Message(id = 104, value = "No response was received from the peer within %d ms")
+    SystemException responseTimedOut(long millis);
+
+    @Message(id = 105, value = "Connection attempts to %s are suspended after repeated failures")
+    IOException circuitOpen(URI location);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 106, value = "Suspending connection attempts to %s for %d ms after %d consecutive failures")
+    void circuitOpened(URI location, long millis, int failures);
+
+    @LogMessage(level = Logger.Level.INFO)
+    @Message(id = 107, value = "Resuming connection attempts to %s")
+    void circuitClosed(URI location);
+
+    @Message(id = 108, value = "Virtual threads are not supported by this Java runtime")
+    IllegalStateException virtualThreadsNotSupported(@Cause Throwable cause);
+
+    @Message(id = 109, value = "Request was rejected because the server is overloaded; it may be retried later")
+    SystemException serverOverloaded();
+
+    @Message(id = 110, value = "Request was rejected because the server is overloaded; it may be retried later")
+    XAException serverOverloadedXa(@Field int errorCode);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 111, value = "Ignoring damaged record at offset %d of xa recovery log segment %s and the rest of the segment")
+    void damagedXARecoveryLogRecord(long offset, Path segmentPath);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 112, value = "Failed to compact xa recovery log segment %s")
+    void compactXARecoveryLogSegmentFailed(Path segmentPath, @Cause IOException e);
+
+    @Message(id = 113, value = "Failed to record the removal of %s in xa recovery log segment %s")
+    XAException removeXAResourceFromRecoveryLogFailed(@Field int errorCode, XAResource resource, Path segmentPath, @Cause IOException e);
+
+    @Message(id = 114, value = "Failed to append xa resource (%s) to xa recovery file %s before prepare")
+    XAException appendDeferredXAResourceRecoveryFileFailed(@Field int errorCode, URI uri, Path filePath, @Cause SystemException e);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 115, value = "Failed to append in doubt xa resource (%s) to xa recovery file %s")
+    void appendInDoubtXAResourceRecoveryFileFailed(URI uri, Path filePath, @Cause SystemException e);
+
+    @Message(id = 116, value = "Damaged record at offset %d of sealed xa recovery log segment %s; records of in doubt resources may have been lost")
+    IOException damagedXARecoveryLogSegment(long offset, Path segmentPath);
+
+    @Message(id = 117, value = "Transaction for ID %d was rolled back because it timed out before it was committed")
+    RollbackException transactionReapedRolledBack(int id);
 }
@@ -0,0 +1,81 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client._private;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import javax.transaction.xa.XAException;
+
+import org.wildfly.common.function.ExceptionSupplier;
+
+/**
+ * Utilities for completion stages of XA operations.
+ */
+public final class Stages {
+    private Stages() {
+    }
+
+    /**
+     * Run a blocking XA operation, returning its outcome as an already completed stage.  The stage is completed
+     * exceptionally if the operation throws an {@link XAException} or a runtime exception.
+     *
+     * @param operation the operation to run (must not be {@code null})
+     * @param <T> the result type
+     * @return the completed stage (not {@code null})
+     */
+    public static <T> CompletionStage<T> completed(ExceptionSupplier<T, XAException> operation) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(operation.get());
+        } catch (XAException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Wait for the result of an asynchronous XA operation, unwrapping its failure.
+     *
+     * @param stage the operation stage (must not be {@code null})
+     * @param <T> the result type
+     * @return the operation result
+     * @throws XAException if the operation failed
+     */
+    public static <T> T await(CompletionStage<T> stage) throws XAException {
+        try {
+            return stage.toCompletableFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Log.log.interruptedXA(XAException.XAER_RMERR);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof XAException) {
+                throw (XAException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw Log.log.resourceManagerErrorXa(XAException.XAER_RMERR, cause);
+            }
+        }
+    }
+}
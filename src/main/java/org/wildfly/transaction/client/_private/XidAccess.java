@@ -0,0 +1,104 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client._private;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.wildfly.transaction.client.SimpleXid;
+
+/**
+ * Access to the packed form of {@link SimpleXid}, which is not part of its API: the array which backs an XID must
+ * never be modified, so it is only handed to and from the wire protocol and the recovery log through this class.
+ */
+public abstract class XidAccess {
+    private static volatile XidAccess instance;
+
+    /**
+     * Construct a new instance.
+     */
+    protected XidAccess() {
+    }
+
+    /**
+     * Get the accessor instance.
+     *
+     * @return the accessor instance (not {@code null})
+     */
+    public static XidAccess getInstance() {
+        XidAccess instance = XidAccess.instance;
+        if (instance == null) {
+            // initializing the class installs the instance
+            SimpleXid.EMPTY.hashCode();
+            instance = XidAccess.instance;
+        }
+        return instance;
+    }
+
+    /**
+     * Install the accessor instance.  This is done once, by {@link SimpleXid}.
+     *
+     * @param instance the accessor instance (must not be {@code null})
+     * @throws IllegalStateException if an instance was installed already
+     */
+    public static void install(final XidAccess instance) {
+        synchronized (XidAccess.class) {
+            if (XidAccess.instance != null) {
+                throw new IllegalStateException();
+            }
+            XidAccess.instance = instance;
+        }
+    }
+
+    /**
+     * Get an XID which is backed by the given array, without copying it.  The array must not be modified afterwards.
+     *
+     * @param formatId the format ID
+     * @param ids the global transaction ID followed by the branch qualifier (must not be {@code null})
+     * @param globalIdLength the length of the global transaction ID
+     * @return the XID
+     */
+    public abstract SimpleXid wrap(int formatId, byte[] ids, int globalIdLength);
+
+    /**
+     * Get the length of the global transaction ID of an XID.
+     *
+     * @param xid the XID (must not be {@code null})
+     * @return the length in bytes
+     */
+    public abstract int getGlobalTransactionIdLength(SimpleXid xid);
+
+    /**
+     * Get the length of the branch qualifier of an XID.
+     *
+     * @param xid the XID (must not be {@code null})
+     * @return the length in bytes
+     */
+    public abstract int getBranchQualifierLength(SimpleXid xid);
+
+    /**
+     * Write the global transaction ID followed by the branch qualifier of an XID to the given stream, without
+     * copying them.
+     *
+     * @param xid the XID (must not be {@code null})
+     * @param os the output stream (must not be {@code null})
+     * @throws IOException if the write failed
+     */
+    public abstract void writeIdsTo(SimpleXid xid, OutputStream os) throws IOException;
+}
@@ -17,6 +17,8 @@
  */
 package org.wildfly.transaction.client.provider.jboss;
 
+import static java.security.AccessController.doPrivileged;
+
 import org.wildfly.common.annotation.NotNull;
 import org.wildfly.transaction.client.LocalTransaction;
 import org.wildfly.transaction.client.SimpleXid;
@@ -30,6 +32,7 @@ import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
@@ -39,10 +42,16 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A registry persisted in a series of log files, containing all outflowed resources info for unfinished transactions.
@@ -54,13 +63,27 @@ import java.util.Set;
  *
  * @author Flavia Rainone
  */
-final class FileSystemXAResourceRegistry {
+final class FileSystemXAResourceRegistry implements XAResourceRegistryStore {
 
     /**
      * Name of recovery dir. Location of this dir can be defined at constructor.
      */
     private static final String RECOVERY_DIR = "ejb-xa-recovery";
 
+    /**
+     * The number of shard dirs the registry files are spread over, chosen by the hash code of the transaction xid,
+     * clamped to 0..256. Zero keeps all registry files directly in the recovery dir. Registry files of either layout
+     * are recovered regardless of this setting.
+     */
+    static final int SHARD_COUNT = Math.max(0, Math.min(Integer.parseInt(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.xa-recovery.shards", "0"))), 256));
+
+    /**
+     * If {@code true}, the first resource added to a registry is not written to the registry file until a second
+     * resource is added, or until it is about to be prepared or found in doubt. A transaction with a single
+     * subordinate which commits in one phase then does no disk I/O at all.
+     */
+    static final boolean DEFERRED_PERSISTENCE = Boolean.parseBoolean(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.xa-recovery.deferred-persistence", "false")));
+
     /**
      * Empty utility array.
      */
@@ -71,6 +94,12 @@ final class FileSystemXAResourceRegistry {
      */
     private static final Object XA_RESOURCE_REGISTRY_KEY = new Object();
 
+    /**
+     * How long after its last change the modification time of a recovery dir can be trusted to tell whether files
+     * were created or deleted since; file systems keep that time with a granularity of up to two seconds.
+     */
+    private static final long DIR_MODIFIED_GRANULARITY = 2000;
+
     /**
      * The local transaction provider associated with this file system XAResource registry
      */
@@ -94,6 +123,25 @@ final class FileSystemXAResourceRegistry {
      */
     private final Set<XAResource> inDoubtResources = Collections.synchronizedSet(new HashSet<>()); // it is a set because we could have an in doubt resource reincide in failure to complete
 
+    /**
+     * The in doubt registries recovered from file system, by file name. Each registry file is loaded only once, after
+     * that only the lines appended to it are. See {@link #recoverInDoubtRegistries}.
+     */
+    private final ConcurrentHashMap<String, XAResourceRegistryFile> recoveredFiles = new ConcurrentHashMap<>();
+
+    /**
+     * The modification times of the recovery dir and of its shard dirs when they were last listed, by the name of the
+     * dir relative to the recovery dir, which is empty for the recovery dir itself.
+     */
+    private final Map<String, Long> listedDirModified = new HashMap<>();
+
+    /**
+     * The number of registry file forces, and the time spent on them.  Every added resource is forced on its own.
+     */
+    private final LongAdder forceCount = new LongAdder();
+    private final LongAdder forcedRecords = new LongAdder();
+    private final LongAdder forceNanos = new LongAdder();
+
     /**
      * Creates a FileSystemXAResourceRegistry.
      *
@@ -114,7 +162,7 @@ final class FileSystemXAResourceRegistry {
      * @return the XAResourceRegistry for {@code transaction}. If there is no such registry file, a new one is created.
      * @throws SystemException if an unexpected failure occurs when creating the registry file
      */
-    XAResourceRegistry getXAResourceRegistryFile(LocalTransaction transaction) throws SystemException {
+    public XAResourceRegistry getXAResourceRegistry(LocalTransaction transaction) throws SystemException {
         XAResourceRegistry registry = (XAResourceRegistry) transaction.getResource(XA_RESOURCE_REGISTRY_KEY);
         if (registry != null)
             return registry;
@@ -138,7 +186,7 @@ final class FileSystemXAResourceRegistry {
      *
      * @return a list of the in doubt xa resources
      */
-    XAResource[] getInDoubtXAResources() {
+    public XAResource[] getInDoubtXAResources() {
         try {
             recoverInDoubtRegistries();
         } catch (IOException e) {
@@ -148,28 +196,126 @@ final class FileSystemXAResourceRegistry {
                     new XAResource[inDoubtResources.size()]);
     }
 
+    public long getForceCount() {
+        return forceCount.sum();
+    }
+
+    public long getForcedRecordCount() {
+        return forcedRecords.sum();
+    }
+
+    public long getForceNanos() {
+        return forceNanos.sum();
+    }
+
     /**
      * Recovers closed registries files from file system. All those registries are considered in doubt.
+     * The first pass loads every registry file, in parallel; the following passes load only the registry files that
+     * are new, and the lines appended to the registry files that were already loaded. A recovery dir is not even
+     * listed if it was not modified since the previous pass.
      *
      * @throws IOException if there is an I/O error when reading the recovered registry files
      */
-    private void recoverInDoubtRegistries() throws IOException {
-        final File recoveryDir = xaRecoveryPath.toFile();
-        if (!recoveryDir.exists()) {
+    private synchronized void recoverInDoubtRegistries() throws IOException {
+        if (!xaRecoveryPath.toFile().exists()) {
             return;
         }
-        final String[] xaRecoveryFileNames = recoveryDir.list();
+        final boolean firstPass = listedDirModified.isEmpty();
+        final Map<String, Long> listedDirs = new HashMap<>();
+        final Set<String> listedFileNames = new HashSet<>();
+        final List<String> newFileNames = new ArrayList<>();
+        listRecoveryDir("", System.currentTimeMillis(), listedDirs, listedFileNames, newFileNames);
+        // forget the registries whose files were deleted by someone else
+        recoveredFiles.keySet().removeIf(fileName -> listedDirs.containsKey(dirNameOf(fileName)) && !listedFileNames.contains(fileName));
+        // no file was created or deleted in the dirs which were not listed, but the recovered ones could still have been appended to
+        for (Map.Entry<String, XAResourceRegistryFile> entry : recoveredFiles.entrySet()) {
+            if (!listedDirs.containsKey(dirNameOf(entry.getKey())))
+                entry.getValue().loadInDoubtResources();
+        }
+        final String nodeName = provider.getNodeName();
+        try {
+            (firstPass ? newFileNames.parallelStream() : newFileNames.stream()).forEach(xaRecoveryFileName -> {
+                try {
+                    recoveredFiles.put(xaRecoveryFileName, new XAResourceRegistryFile(xaRecoveryFileName, nodeName));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        // only now, so that the files which failed to load are retried on the next pass
+        listedDirModified.putAll(listedDirs);
+    }
+
+    /**
+     * Lists a recovery dir, unless it was not modified since it was last listed. Shard dirs found in the recovery dir
+     * are listed as well, and so are the ones known from previous passes if the recovery dir is not listed.
+     *
+     * @param dirName the name of the dir relative to the recovery dir, empty for the recovery dir itself
+     * @param now the current time
+     * @param listedDirs receives the modification time of every dir that is listed
+     * @param listedFileNames receives the names of the registry files found in the listed dirs
+     * @param newFileNames receives the names of the registry files that are neither open nor recovered yet
+     * @throws IOException if there is an I/O error when reading the recovered registry files
+     */
+    private void listRecoveryDir(String dirName, long now, Map<String, Long> listedDirs, Set<String> listedFileNames, List<String> newFileNames) throws IOException {
+        final File dir = dirName.isEmpty() ? xaRecoveryPath.toFile() : xaRecoveryPath.resolve(dirName).toFile();
+        final long dirModified = dir.lastModified();
+        final Long previousDirModified = listedDirModified.get(dirName);
+        if (previousDirModified != null && previousDirModified == dirModified && now - dirModified > DIR_MODIFIED_GRANULARITY) {
+            if (dirName.isEmpty()) {
+                for (String shardDirName : new ArrayList<>(listedDirModified.keySet())) {
+                    if (!shardDirName.isEmpty())
+                        listRecoveryDir(shardDirName, now, listedDirs, listedFileNames, newFileNames);
+                }
+            }
+            return;
+        }
+        final String[] xaRecoveryFileNames = dir.list();
         if (xaRecoveryFileNames == null) {
-            Log.log.listXAResourceRecoveryFilesNull(recoveryDir);
+            Log.log.listXAResourceRecoveryFilesNull(dir);
             return;
         }
+        listedDirs.put(dirName, dirModified);
         for (String xaRecoveryFileName : xaRecoveryFileNames) {
+            if (dirName.isEmpty() && isShardDirName(xaRecoveryFileName) && new File(dir, xaRecoveryFileName).isDirectory()) {
+                listRecoveryDir(xaRecoveryFileName, now, listedDirs, listedFileNames, newFileNames);
+                continue;
+            }
+            final String fileName = dirName.isEmpty() ? xaRecoveryFileName : dirName + File.separator + xaRecoveryFileName;
+            listedFileNames.add(fileName);
             // check if file is not open already
-            if (!openFilePaths.contains(xaRecoveryFileName))
-                new XAResourceRegistryFile(xaRecoveryFileName, provider);
+            if (openFilePaths.contains(fileName))
+                continue;
+            final XAResourceRegistryFile recoveredFile = recoveredFiles.get(fileName);
+            if (recoveredFile == null)
+                newFileNames.add(fileName);
+            else
+                recoveredFile.loadInDoubtResources();
         }
     }
 
+    /**
+     * Returns the name of the shard dir for a registry file, relative to the recovery dir.
+     *
+     * @param xid the transaction xid
+     * @return the name of the shard dir, or an empty string if registry files are not sharded
+     */
+    private static String shardDirNameOf(SimpleXid xid) {
+        return SHARD_COUNT == 0 ? "" : String.format("%02x", Math.floorMod(xid.hashCode(), SHARD_COUNT));
+    }
+
+    private static boolean isShardDirName(String name) {
+        // registry file names are much longer
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) != -1 && Character.digit(name.charAt(1), 16) != -1;
+    }
+
+    private static String dirNameOf(String fileName) {
+        final int separator = fileName.lastIndexOf(File.separatorChar);
+        return separator == -1 ? "" : fileName.substring(0, separator);
+    }
+
 
     /**
      * Represents a single file in the file system that records all outflowed resources per a specific local transaction.
@@ -183,10 +329,36 @@ final class FileSystemXAResourceRegistry {
         private final Path filePath;
 
         /**
-         * The file channel, if non-null, it indicates that this registry represents a current, on-going transaction,
-         * if null, then this registry represents an registry file recovered from file system.
+         * Name of the registry file relative to the recovery dir, including the shard dir if there is one.
+         */
+        @NotNull
+        private final String fileName;
+
+        /**
+         * Indicates whether this registry represents a registry file recovered from file system, as opposed to a
+         * current, on-going transaction.
+         */
+        private final boolean recovered;
+
+        /**
+         * The node name the resources of a recovered registry are reloaded with, and the number of bytes of the
+         * recovered registry file that were loaded so far. Both are unused unless {@link #recovered}.
+         */
+        private final String nodeName;
+        private long loadedSize;
+
+        /**
+         * The file channel of a current, on-going transaction. It is null if this registry is {@link #recovered}, or
+         * if the registry file was not created yet. Protected by {@code this}.
+         */
+        private FileChannel fileChannel;
+
+        /**
+         * The resource whose record is deferred, and its location, see {@link #DEFERRED_PERSISTENCE}. Protected by
+         * {@code this}.
          */
-        private final FileChannel fileChannel;
+        private XAResource deferredResource;
+        private URI deferredUri;
 
         /**
          * Keeps track of the XA outflowed resources stored in this registry, see {@link #addResource} and
@@ -204,17 +376,16 @@ final class FileSystemXAResourceRegistry {
          * @throws SystemException if the there was a problem when creating the recovery file in file system
          */
         XAResourceRegistryFile(Xid xid) throws SystemException {
-            xaRecoveryPath.toFile().mkdir(); // create dir if non existent
-            final String xidString = SimpleXid.of(xid).toHexString('_');
-            this.filePath = xaRecoveryPath.resolve(xidString);
-            openFilePaths.add(xidString);
-            try {
-                fileChannel = FileChannel.open(filePath, StandardOpenOption.APPEND, StandardOpenOption.CREATE_NEW);
-                fileChannel.lock();
-                Log.log.xaResourceRecoveryFileCreated(filePath);
-            } catch (IOException e) {
-                throw Log.log.createXAResourceRecoveryFileFailed(filePath, e);
-            }
+            final SimpleXid simpleXid = SimpleXid.of(xid);
+            final String xidString = simpleXid.toHexString('_');
+            final String shardDirName = shardDirNameOf(simpleXid);
+            this.fileName = shardDirName.isEmpty() ? xidString : shardDirName + File.separator + xidString;
+            this.filePath = xaRecoveryPath.resolve(fileName);
+            this.recovered = false;
+            this.nodeName = null;
+            openFilePaths.add(fileName);
+            if (!DEFERRED_PERSISTENCE)
+                createFile();
         }
 
         /**
@@ -226,13 +397,16 @@ final class FileSystemXAResourceRegistry {
          * resources. The goal is to reload those resources so they can be recovered.
          *
          * @param inDoubtFilePath the file path of the in doubt registry
+         * @param nodeName the node name of the recovered resources
          * @throws IOException if there is an I/O error when realoding the registry file
          */
-        private XAResourceRegistryFile(String inDoubtFilePath, LocalTransactionProvider provider) throws IOException {
+        private XAResourceRegistryFile(String inDoubtFilePath, String nodeName) throws IOException {
             this.filePath = xaRecoveryPath.resolve(inDoubtFilePath);
+            this.fileName = inDoubtFilePath;
+            this.recovered = true;
+            this.nodeName = nodeName;
             this.fileChannel = null; // no need to open file channel here
-            openFilePaths.add(inDoubtFilePath);
-            loadInDoubtResources(provider.getNodeName());
+            loadInDoubtResources();
             Log.log.xaResourceRecoveryRegistryReloaded(filePath);
         }
 
@@ -240,19 +414,37 @@ final class FileSystemXAResourceRegistry {
          * {@inheritDoc}
          */
         @Override
-        protected void addResource(XAResource resource, URI uri) throws SystemException {
-            assert fileChannel != null;
-            try {
-                assert fileChannel.isOpen();
-                fileChannel.write(ByteBuffer.wrap((uri.toString() + System.lineSeparator()).getBytes(StandardCharsets.UTF_8)));
-                fileChannel.force(true);
-            } catch (IOException e) {
-                throw Log.log.appendXAResourceRecoveryFileFailed(uri, filePath, e);
+        protected synchronized void addResource(XAResource resource, URI uri) throws SystemException {
+            assert !recovered;
+            if (DEFERRED_PERSISTENCE && fileChannel == null && resources.isEmpty()) {
+                // a single subordinate which commits in one phase needs no record
+                deferredResource = resource;
+                deferredUri = uri;
+                this.resources.add(resource);
+                return;
             }
+            append(uri);
             this.resources.add(resource);
             Log.log.xaResourceAddedToRecoveryRegistry(uri, filePath);
         }
 
+        /**
+         * {@inheritDoc}
+         * The record of the resource is written now if it was deferred.
+         *
+         * @throws XAException if there is a problem writing the registry file
+         */
+        @Override
+        protected synchronized void resourcePreparing(XAResource resource) throws XAException {
+            if (resource == deferredResource) {
+                try {
+                    append(null);
+                } catch (SystemException e) {
+                    throw Log.log.appendDeferredXAResourceRecoveryFileFailed(XAException.XAER_RMERR, deferredUri, filePath, e);
+                }
+            }
+        }
+
         /**
          * {@inheritDoc}
          * The registry file is closed and deleted if there are no more resources left.
@@ -260,20 +452,27 @@ final class FileSystemXAResourceRegistry {
          * @throws XAException if there is a problem deleting the registry file
          */
         @Override
-        protected void removeResource(XAResource resource) throws XAException {
+        protected synchronized void removeResource(XAResource resource) throws XAException {
             if (resources.remove(resource)) {
+                if (resource == deferredResource) {
+                    deferredResource = null;
+                    deferredUri = null;
+                }
                 if (resources.isEmpty()) {
-                    // delete file
-                    try {
-                        if (fileChannel != null) {
-                            fileChannel.close();
+                    // delete file, unless it was never created
+                    if (recovered || fileChannel != null) {
+                        try {
+                            if (fileChannel != null) {
+                                fileChannel.close();
+                            }
+                            Files.delete(filePath);
+                        } catch (IOException e) {
+                            throw Log.log.deleteXAResourceRecoveryFileFailed(XAException.XAER_RMERR, filePath, resource, e);
                         }
-                        Files.delete(filePath);
-                        openFilePaths.remove(filePath.toString());
-                    } catch (IOException e) {
-                        throw Log.log.deleteXAResourceRecoveryFileFailed(XAException.XAER_RMERR, filePath, resource, e);
+                        Log.log.xaResourceRecoveryFileDeleted(filePath);
                     }
-                    Log.log.xaResourceRecoveryFileDeleted(filePath);
+                    openFilePaths.remove(fileName);
+                    recoveredFiles.remove(fileName, this);
                 }
                 // remove resource from in doubt list, in case the resource was in doubt
                 inDoubtResources.remove(resource);
@@ -284,27 +483,112 @@ final class FileSystemXAResourceRegistry {
          * {@inheritDoc}
          */
         @Override
-        protected void resourceInDoubt(XAResource resource) {
+        protected synchronized void resourceInDoubt(XAResource resource) {
+            if (resource == deferredResource) {
+                try {
+                    append(null);
+                } catch (SystemException e) {
+                    Log.log.appendInDoubtXAResourceRecoveryFileFailed(deferredUri, filePath, e);
+                }
+            }
             inDoubtResources.add(resource);
         }
 
         /**
-         * Loads in doubt resources from recovered registry file.
+         * Creates the registry file of a current, on-going transaction.
          *
-         * @throws IOException if an I/O error occurs when reloading the resources from the file
+         * @throws SystemException if the there was a problem when creating the recovery file in file system
          */
-        private void loadInDoubtResources(String nodeName) throws IOException {
-            assert fileChannel == null;
-            final List<String> uris;
+        private void createFile() throws SystemException {
+            xaRecoveryPath.resolve(dirNameOf(fileName)).toFile().mkdirs(); // create dirs if non existent
             try {
-                uris = Files.readAllLines(filePath);
+                fileChannel = FileChannel.open(filePath, StandardOpenOption.APPEND, StandardOpenOption.CREATE_NEW);
+                fileChannel.lock();
+                Log.log.xaResourceRecoveryFileCreated(filePath);
+            } catch (IOException e) {
+                throw Log.log.createXAResourceRecoveryFileFailed(filePath, e);
+            }
+        }
+
+        /**
+         * Appends the deferred record, if any, and the record of a resource to the registry file, creating the file
+         * if it does not exist yet. The records are forced together.
+         *
+         * @param uri the resource URI location, or {@code null} to append the deferred record only
+         * @throws SystemException if there is a problem writing the registry file
+         */
+        private void append(URI uri) throws SystemException {
+            if (fileChannel == null)
+                createFile();
+            final StringBuilder records = new StringBuilder();
+            int count = 0;
+            if (deferredUri != null) {
+                records.append(deferredUri).append(System.lineSeparator());
+                count ++;
+            }
+            if (uri != null) {
+                records.append(uri).append(System.lineSeparator());
+                count ++;
+            }
+            try {
+                assert fileChannel.isOpen();
+                fileChannel.write(ByteBuffer.wrap(records.toString().getBytes(StandardCharsets.UTF_8)));
+                final long start = System.nanoTime();
+                fileChannel.force(true);
+                forceCount.increment();
+                forcedRecords.add(count);
+                forceNanos.add(System.nanoTime() - start);
+            } catch (IOException e) {
+                throw Log.log.appendXAResourceRecoveryFileFailed(uri == null ? deferredUri : uri, filePath, e);
+            }
+            if (deferredUri != null) {
+                Log.log.xaResourceAddedToRecoveryRegistry(deferredUri, filePath);
+                deferredResource = null;
+                deferredUri = null;
+            }
+        }
+
+        /**
+         * Loads in doubt resources from recovered registry file, starting after the lines that were already loaded.
+         * A last line which is not terminated yet is left for a later call.
+         *
+         * @throws IOException if an I/O error occurs when reloading the resources from the file
+         */
+        private void loadInDoubtResources() throws IOException {
+            assert recovered;
+            final byte[] bytes;
+            try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                final long size = channel.size();
+                if (size <= loadedSize) {
+                    return;
+                }
+                final ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(size - loadedSize));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, loadedSize + buffer.position()) == -1) {
+                        break;
+                    }
+                }
+                bytes = buffer.array();
             } catch (IOException e) {
                 throw Log.log.readXAResourceRecoveryFileFailed(filePath, e);
             }
-            for (String uriString : uris) {
+            final long offset = loadedSize;
+            int lineStart = 0;
+            for (int i = 0; i < bytes.length; i ++) {
+                if (bytes[i] != '\n') {
+                    continue;
+                }
+                int lineEnd = i;
+                if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+                    lineEnd --;
+                }
+                final String uriString = new String(bytes, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+                lineStart = i + 1;
                 // adding a line separator at the end of each uri entry results in an extra empty line
-                if (uriString.isEmpty())
+                if (uriString.isEmpty()) {
+                    loadedSize = offset + lineStart;
                     continue;
+                }
                 final URI uri;
                 try {
                     uri = new URI(uriString);
@@ -312,8 +596,12 @@ final class FileSystemXAResourceRegistry {
                     throw Log.log.readURIFromXAResourceRecoveryFileFailed(uriString, filePath, e);
                 }
                 final XAResource xaresource = reloadInDoubtResource(uri, nodeName);
+                // so that the file is deleted once all of its resources are recovered
+                resources.add(xaresource);
                 inDoubtResources.add(xaresource);
                 Log.log.xaResourceRecoveredFromRecoveryRegistry(uri, filePath);
+                // the line counts as loaded only now, so that a line which failed to parse is read again
+                loadedSize = offset + lineStart;
             }
         }
     }
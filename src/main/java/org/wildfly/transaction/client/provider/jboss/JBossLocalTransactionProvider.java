@@ -23,13 +23,15 @@ import static com.arjuna.ats.arjuna.coordinator.TwoPhaseOutcome.PREPARE_NOTOK;
 import static com.arjuna.ats.arjuna.coordinator.TwoPhaseOutcome.PREPARE_OK;
 import static com.arjuna.ats.arjuna.coordinator.TwoPhaseOutcome.PREPARE_READONLY;
 import static java.lang.Long.signum;
+import static java.security.AccessController.doPrivileged;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.security.PrivilegedAction;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
 
 import javax.resource.spi.XATerminator;
 import javax.transaction.HeuristicCommitException;
@@ -77,8 +79,14 @@ public abstract class JBossLocalTransactionProvider implements LocalTransactionP
     private final TransactionManager tm;
     private final XAImporterImpl xi = new XAImporterImpl();
     private final ConcurrentSkipListSet<XidKey> timeoutSet = new ConcurrentSkipListSet<>();
-    private final ConcurrentMap<SimpleXid, Entry> known = new ConcurrentHashMap<>();
-    private final FileSystemXAResourceRegistry fileSystemXAResourceRegistry;
+    private final XidIndex<Entry> known = new XidIndex<>();
+    private final XAResourceRegistryStore xaResourceRegistryStore;
+
+    /**
+     * If {@code true}, outflowed resources are recorded in a shared, segmented log rather than in a file per
+     * transaction.  Registry files left by the latter are still recovered.
+     */
+    private static final boolean SEGMENTED_XA_RECOVERY_LOG = Boolean.parseBoolean(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.xa-recovery.segmented-log", "false")));
 
     JBossLocalTransactionProvider(final ExtendedJBossXATerminator ext, final int staleTransactionTime, final TransactionManager tm,
                                   final XAResourceRecoveryRegistry registry, final Path xaRecoveryDirRelativeToPath) {
@@ -94,8 +102,20 @@ public abstract class JBossLocalTransactionProvider implements LocalTransactionP
             // if it fails we ignore, troubles will be adjusted during runtime
             Log.log.doRecoverFailureOnIntialization(e);
         }
-        this.fileSystemXAResourceRegistry = new FileSystemXAResourceRegistry(this, xaRecoveryDirRelativeToPath);
+        final FileSystemXAResourceRegistry fileSystemXAResourceRegistry = new FileSystemXAResourceRegistry(this, xaRecoveryDirRelativeToPath);
         registry.addXAResourceRecovery(fileSystemXAResourceRegistry::getInDoubtXAResources);
+        if (SEGMENTED_XA_RECOVERY_LOG) {
+            final SegmentedXAResourceRegistry segmentedXAResourceRegistry;
+            try {
+                segmentedXAResourceRegistry = new SegmentedXAResourceRegistry(this, xaRecoveryDirRelativeToPath);
+            } catch (IOException e) {
+                throw Log.log.unexpectedExceptionOnXAResourceRecovery(e);
+            }
+            registry.addXAResourceRecovery(segmentedXAResourceRegistry::getInDoubtXAResources);
+            this.xaResourceRegistryStore = segmentedXAResourceRegistry;
+        } else {
+            this.xaResourceRegistryStore = fileSystemXAResourceRegistry;
+        }
     }
 
     /**
@@ -157,7 +177,37 @@ public abstract class JBossLocalTransactionProvider implements LocalTransactionP
 
     @Override
     public XAResourceRegistry getXAResourceRegistry(LocalTransaction transaction) throws SystemException {
-        return fileSystemXAResourceRegistry.getXAResourceRegistryFile(transaction);
+        return xaResourceRegistryStore.getXAResourceRegistry(transaction);
+    }
+
+    /**
+     * Get the number of times the XA resource registry was forced to disk.
+     *
+     * @return the number of forces
+     */
+    public long getXAResourceRegistryForceCount() {
+        return xaResourceRegistryStore.getForceCount();
+    }
+
+    /**
+     * Get the number of XA resource registry records which were made durable by forcing the registry to disk.  With
+     * the segmented log, concurrent records are forced together, so this can be larger than the number of forces.
+     *
+     * @return the number of records forced
+     */
+    public long getXAResourceRegistryForcedRecordCount() {
+        return xaResourceRegistryStore.getForcedRecordCount();
+    }
+
+    /**
+     * Get the total time spent forcing the XA resource registry to disk.
+     *
+     * @param unit the time unit of the result (must not be {@code null})
+     * @return the total force time
+     */
+    public long getXAResourceRegistryForceTime(TimeUnit unit) {
+        Assert.checkNotNullParam("unit", unit);
+        return unit.convert(xaResourceRegistryStore.getForceNanos(), TimeUnit.NANOSECONDS);
     }
 
     abstract int getTransactionManagerTimeout() throws SystemException;
@@ -223,7 +273,7 @@ public abstract class JBossLocalTransactionProvider implements LocalTransactionP
                         // let the TM do some heavy lifting for us
                         final long timeTick = getTimeTick();
                         // clear off all expired entries
-                        final ConcurrentMap<SimpleXid, Entry> known = JBossLocalTransactionProvider.this.known;
+                        final XidIndex<Entry> known = JBossLocalTransactionProvider.this.known;
                         final Iterator<XidKey> iterator = timeoutSet.headSet(new XidKey(SimpleXid.EMPTY, timeTick)).iterator();
                         while (iterator.hasNext()) {
                             SimpleXid xidToRemove = iterator.next().getId();
@@ -538,7 +588,7 @@ public abstract class JBossLocalTransactionProvider implements LocalTransactionP
             try {
                 final SimpleXid simpleXid = SimpleXid.of(xid);
                 final SimpleXid gtid = simpleXid.withoutBranch();
-                final ConcurrentMap<SimpleXid, Entry> known = JBossLocalTransactionProvider.this.known;
+                final XidIndex<Entry> known = JBossLocalTransactionProvider.this.known;
                 Entry entry = known.get(gtid);
                 if (entry != null) {
                     return new ImportResult<Transaction>(entry.getTransaction(), entry, false);
@@ -576,7 +626,7 @@ public abstract class JBossLocalTransactionProvider implements LocalTransactionP
             try {
                 final SimpleXid simpleXid = SimpleXid.of(xid);
                 final SimpleXid gtid = simpleXid.withoutBranch();
-                final ConcurrentMap<SimpleXid, Entry> known = JBossLocalTransactionProvider.this.known;
+                final XidIndex<Entry> known = JBossLocalTransactionProvider.this.known;
                 Entry entry = known.get(gtid);
                 if (entry != null) {
                     return entry.getTransaction();
@@ -0,0 +1,759 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.jboss;
+
+import static java.security.AccessController.doPrivileged;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import javax.transaction.SystemException;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+
+import org.wildfly.transaction.client.LocalTransaction;
+import org.wildfly.transaction.client.SimpleXid;
+import org.wildfly.transaction.client.XAResourceRegistry;
+import org.wildfly.transaction.client._private.Log;
+import org.wildfly.transaction.client._private.XidAccess;
+import org.wildfly.transaction.client.spi.LocalTransactionProvider;
+
+/**
+ * A registry of outflowed resources which is kept in one shared, append-only log instead of a file per transaction.
+ * Adding a resource appends an "add" record and forces it to disk; removing it appends a "remove" record, which need
+ * not be forced since a lost removal only makes recovery ask the subordinate about a transaction it has finished.
+ * <p>
+ * The log is split into segments.  When the active segment is full a new one is started, and the oldest segment is
+ * deleted as soon as none of its "add" records is live any more.  If only a few of them are, they are copied to the
+ * active segment in the background so that the oldest segment can be deleted anyway.  Only the oldest segment is ever
+ * deleted, so a "remove" record is never lost while the "add" record it cancels is still on disk.
+ * <p>
+ * On startup the segments are replayed, and the resources whose "add" record is still live are in doubt.
+ */
+final class SegmentedXAResourceRegistry implements XAResourceRegistryStore {
+
+    /**
+     * The approximate size, in bytes, at which a log segment is sealed and a new one is started.
+     */
+    static final long SEGMENT_SIZE = Long.parseLong(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.xa-recovery.segment-size", "4194304")));
+    /**
+     * The time, in microseconds, that the thread which forces the log waits for more records to be appended, so that
+     * they are forced together; zero forces right away, which still groups the records appended during a force.
+     */
+    static final long FLUSH_WINDOW = Long.parseLong(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.xa-recovery.flush-window", "0")));
+    /**
+     * The number of waiting records at which the log is forced without waiting out the flush window.
+     */
+    static final int FLUSH_MAX_BATCH = Integer.parseInt(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.xa-recovery.flush-max-batch", "64")));
+
+    /**
+     * Name of the log dir, which is next to the recovery dir of {@link FileSystemXAResourceRegistry}.
+     */
+    private static final String LOG_DIR = "ejb-xa-recovery-log";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int REC_ADD = 1;
+    private static final int REC_REMOVE = 2;
+    // record length and checksum
+    private static final int HEADER_SIZE = 8;
+
+    private static final XidAccess XIDS = XidAccess.getInstance();
+
+    /**
+     * Key for keeping the xa resource registry associated with a local transaction
+     */
+    private static final Object XA_RESOURCE_REGISTRY_KEY = new Object();
+
+    private final LocalTransactionProvider provider;
+    private final Path logPath;
+
+    /**
+     * The in doubt resources, see {@link FileSystemXAResourceRegistry#getInDoubtXAResources()}.
+     */
+    private final Set<XAResource> inDoubtResources = Collections.synchronizedSet(new HashSet<>());
+
+    private final Object lock = new Object();
+    // the live "add" records, by record ID; protected by {@code lock}
+    private final HashMap<Long, Record> live = new HashMap<>();
+    // the segments on disk, oldest first; protected by {@code lock}
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    // protected by {@code lock}
+    private Segment active;
+    // protected by {@code lock}
+    private long nextRecordId;
+    // protected by {@code lock}
+    private boolean compacting;
+    // the number of records appended; protected by {@code lock}
+    private long appended;
+
+    private final Object flushLock = new Object();
+    // the number of appended records which are known to be on disk; protected by {@code flushLock}
+    private long forced;
+    // protected by {@code flushLock}
+    private boolean flushing;
+    // the number of threads waiting for their records to be forced; protected by {@code flushLock}
+    private int waiters;
+
+    private final LongAdder forceCount = new LongAdder();
+    private final LongAdder forcedRecords = new LongAdder();
+    private final LongAdder forceNanos = new LongAdder();
+
+    // the records left live by a previous JVM instance, until they are reloaded as in doubt resources; protected by {@code lock}
+    private List<Record> recovered;
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(task -> {
+        final Thread thread = new Thread(task, "XA recovery log compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a SegmentedXAResourceRegistry, replaying the existing log segments.
+     *
+     * @param provider the local transaction provider
+     * @param relativePath the path the log dir is relative to
+     * @throws IOException if the log could not be read or a new segment could not be started
+     */
+    SegmentedXAResourceRegistry(LocalTransactionProvider provider, Path relativePath) throws IOException {
+        this.provider = provider;
+        this.logPath = relativePath == null ? FileSystems.getDefault().getPath(LOG_DIR) : relativePath.resolve(LOG_DIR);
+        Files.createDirectories(logPath);
+        synchronized (lock) {
+            replay();
+            recovered = new ArrayList<>(live.values());
+            deleteUnusedSegments();
+            startSegment();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public XAResourceRegistry getXAResourceRegistry(LocalTransaction transaction) throws SystemException {
+        XAResourceRegistry registry = (XAResourceRegistry) transaction.getResource(XA_RESOURCE_REGISTRY_KEY);
+        if (registry != null)
+            return registry;
+        registry = new LogRegistry(SimpleXid.of(transaction.getXid()));
+        transaction.putResource(XA_RESOURCE_REGISTRY_KEY, registry);
+        return registry;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public XAResource[] getInDoubtXAResources() {
+        final List<Record> recovered;
+        synchronized (lock) {
+            recovered = this.recovered;
+            this.recovered = null;
+        }
+        if (recovered != null) {
+            reloadInDoubtResources(recovered);
+        }
+        synchronized (inDoubtResources) {
+            return inDoubtResources.toArray(new XAResource[inDoubtResources.size()]);
+        }
+    }
+
+    private void reloadInDoubtResources(List<Record> recovered) {
+        final String nodeName = provider.getNodeName();
+        final Map<SimpleXid, LogRegistry> registries = new HashMap<>();
+        for (Record record : recovered) {
+            final LogRegistry registry = registries.computeIfAbsent(record.xid, LogRegistry::new);
+            final XAResource resource = registry.reload(record, nodeName);
+            inDoubtResources.add(resource);
+            Log.log.xaResourceRecoveredFromRecoveryRegistry(record.uri, logPath);
+        }
+    }
+
+    /**
+     * Appends an "add" record and waits until it is on disk.
+     *
+     * @return the new record
+     */
+    Record add(SimpleXid xid, URI uri) throws IOException {
+        // an interrupt would close the log channel under everyone else's feet
+        final boolean interrupted = Thread.interrupted();
+        try {
+            return addUninterruptibly(xid, uri);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Record addUninterruptibly(SimpleXid xid, URI uri) throws IOException {
+        final Record record;
+        final long sequence;
+        synchronized (lock) {
+            record = new Record(nextRecordId ++, xid, uri);
+            final Segment segment = append(encode(REC_ADD, record));
+            record.segment = segment;
+            segment.live ++;
+            segment.added ++;
+            live.put(Long.valueOf(record.id), record);
+            sequence = ++ appended;
+        }
+        try {
+            awaitForced(sequence);
+        } catch (IOException e) {
+            // the caller does not outflow the resource; cancel the record in case it reached the disk anyway (should
+            // that fail too, recovery reloads a resource which its subordinate does not know, and then forgets it)
+            synchronized (lock) {
+                if (live.remove(Long.valueOf(record.id)) != null) {
+                    record.segment.live --;
+                    try {
+                        append(encode(REC_REMOVE, record));
+                    } catch (IOException e1) {
+                        e.addSuppressed(e1);
+                    }
+                }
+            }
+            throw e;
+        }
+        return record;
+    }
+
+    /**
+     * Wait until the record with the given append sequence number is on disk.  Concurrent callers are grouped: one of
+     * them forces the log on behalf of all the others, after waiting up to the flush window for more of them to arrive.
+     *
+     * @param sequence the append sequence number
+     * @throws IOException if forcing the log failed
+     */
+    private void awaitForced(final long sequence) throws IOException {
+        boolean interrupted = false;
+        try {
+            synchronized (flushLock) {
+                waiters ++;
+            }
+            for (;;) {
+                synchronized (flushLock) {
+                    for (;;) {
+                        if (forced >= sequence) {
+                            waiters --;
+                            return;
+                        }
+                        if (! flushing) {
+                            break;
+                        }
+                        if (waiters >= FLUSH_MAX_BATCH) {
+                            // the batch is full; wake the flusher early
+                            flushLock.notifyAll();
+                        }
+                        try {
+                            flushLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    // this thread flushes for the group
+                    flushing = true;
+                    if (FLUSH_WINDOW > 0) {
+                        final long deadline = System.nanoTime() + FLUSH_WINDOW * 1000L;
+                        long remaining;
+                        while (waiters < FLUSH_MAX_BATCH && (remaining = deadline - System.nanoTime()) > 0) {
+                            try {
+                                flushLock.wait(remaining / 1_000_000L, (int) (remaining % 1_000_000L));
+                            } catch (InterruptedException e) {
+                                interrupted = true;
+                            }
+                        }
+                    }
+                }
+                long target = 0;
+                IOException failure = null;
+                try {
+                    final Segment segment;
+                    final FileChannel channel;
+                    synchronized (lock) {
+                        target = appended;
+                        segment = active;
+                        channel = activeChannel();
+                    }
+                    final long start = System.nanoTime();
+                    try {
+                        channel.force(false);
+                        forceCount.increment();
+                        forceNanos.add(System.nanoTime() - start);
+                    } catch (ClosedChannelException e) {
+                        // this also catches ClosedByInterruptException and AsynchronousCloseException, so nothing is
+                        // known to be forced unless the segment was sealed, which forced everything appended to it
+                        synchronized (lock) {
+                            if (active == segment) {
+                                // not sealed; the next round reopens the channel and forces it again
+                                target = 0;
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                    target = 0;
+                }
+                synchronized (flushLock) {
+                    flushing = false;
+                    markForced(target);
+                    flushLock.notifyAll();
+                    if (failure != null) {
+                        waiters --;
+                        throw failure;
+                    }
+                    // if the record is not known to be forced yet, go round again
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // protected by {@code flushLock}
+    private void markForced(final long sequence) {
+        if (sequence > forced) {
+            forcedRecords.add(sequence - forced);
+            forced = sequence;
+        }
+    }
+
+    // protected by {@code lock}
+    private void forceActive() throws IOException {
+        final long start = System.nanoTime();
+        activeChannel().force(false);
+        forceCount.increment();
+        forceNanos.add(System.nanoTime() - start);
+        synchronized (flushLock) {
+            markForced(appended);
+            flushLock.notifyAll();
+        }
+    }
+
+    public long getForceCount() {
+        return forceCount.sum();
+    }
+
+    public long getForcedRecordCount() {
+        return forcedRecords.sum();
+    }
+
+    public long getForceNanos() {
+        return forceNanos.sum();
+    }
+
+    /**
+     * Appends a "remove" record, without forcing it to disk.
+     */
+    void remove(Record record) throws IOException {
+        final boolean interrupted = Thread.interrupted();
+        try {
+            synchronized (lock) {
+                if (live.remove(Long.valueOf(record.id)) == null) {
+                    return;
+                }
+                append(encode(REC_REMOVE, record));
+                record.segment.live --;
+                deleteUnusedSegments();
+                scheduleCompaction();
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    Path getActiveSegmentPath() {
+        synchronized (lock) {
+            return active == null ? logPath : active.path;
+        }
+    }
+
+    // protected by {@code lock}
+    private FileChannel activeChannel() throws IOException {
+        FileChannel channel = active.channel;
+        if (! channel.isOpen()) {
+            // closed by an interrupt despite our efforts; what was written is still there
+            active.channel = channel = FileChannel.open(active.path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return channel;
+    }
+
+    // protected by {@code lock}
+    private Segment append(ByteBuffer buffer) throws IOException {
+        activeChannel();
+        Segment segment = active;
+        if (segment.size >= SEGMENT_SIZE) {
+            // whatever is waiting to be forced is in this segment
+            forceActive();
+            segment.channel.close();
+            segment.channel = null;
+            segment = startSegment();
+            scheduleCompaction();
+        }
+        while (buffer.hasRemaining()) {
+            segment.size += segment.channel.write(buffer);
+        }
+        return segment;
+    }
+
+    // protected by {@code lock}
+    private Segment startSegment() throws IOException {
+        final long sequence = segments.isEmpty() ? 0 : segments.lastKey().longValue() + 1;
+        final Path path = logPath.resolve(String.format("%s%016x%s", SEGMENT_PREFIX, Long.valueOf(sequence), SEGMENT_SUFFIX));
+        final Segment segment = new Segment(sequence, path);
+        segment.channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND, StandardOpenOption.CREATE_NEW);
+        forceDirectory();
+        segments.put(Long.valueOf(sequence), segment);
+        active = segment;
+        Log.log.xaResourceRecoveryFileCreated(path);
+        return segment;
+    }
+
+    private void forceDirectory() {
+        // make the new segment entry durable; not every platform can open a directory, so this is best effort
+        try (FileChannel dir = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    // protected by {@code lock}
+    private void deleteUnusedSegments() throws IOException {
+        final Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            final Segment segment = iterator.next();
+            if (segment == active || segment.live > 0) {
+                return;
+            }
+            iterator.remove();
+            Files.deleteIfExists(segment.path);
+            Log.log.xaResourceRecoveryFileDeleted(segment.path);
+        }
+    }
+
+    // protected by {@code lock}
+    private void scheduleCompaction() {
+        if (compacting || segments.isEmpty()) {
+            return;
+        }
+        final Segment oldest = segments.firstEntry().getValue();
+        // compact the oldest segment once three quarters of its records are gone
+        if (oldest != active && oldest.live > 0 && oldest.live <= oldest.added >> 2) {
+            compacting = true;
+            compactor.execute(this::compact);
+        }
+    }
+
+    private void compact() {
+        Path path = logPath;
+        try {
+            synchronized (lock) {
+                compacting = false;
+                final Segment oldest = segments.firstEntry().getValue();
+                if (oldest == active) {
+                    return;
+                }
+                path = oldest.path;
+                // copy the live records forward
+                final List<Record> copied = new ArrayList<>(oldest.live);
+                final List<Segment> targets = new ArrayList<>(oldest.live);
+                for (Record record : live.values()) {
+                    if (record.segment == oldest) {
+                        targets.add(append(encode(REC_ADD, record)));
+                        copied.add(record);
+                    }
+                }
+                if (! copied.isEmpty()) {
+                    // the copies must be on disk before the records move to them; until then the oldest segment stays
+                    forceActive();
+                    for (int i = 0; i < copied.size(); i ++) {
+                        final Record record = copied.get(i);
+                        final Segment target = targets.get(i);
+                        record.segment.live --;
+                        record.segment = target;
+                        target.live ++;
+                        target.added ++;
+                    }
+                }
+                deleteUnusedSegments();
+                scheduleCompaction();
+            }
+        } catch (IOException e) {
+            Log.log.compactXARecoveryLogSegmentFailed(path, e);
+        }
+    }
+
+    // protected by {@code lock}
+    private void replay() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(logPath, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                final String name = path.getFileName().toString();
+                final long sequence;
+                try {
+                    sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                segments.put(Long.valueOf(sequence), new Segment(sequence, path));
+            }
+        }
+        for (Segment segment : segments.values()) {
+            replay(segment, segment == segments.lastEntry().getValue());
+        }
+    }
+
+    /**
+     * Replays a segment.  Only the last segment may end with a record which was torn by a crash, and that tail is
+     * cut off before the segment is sealed; a damaged record anywhere else means that records were lost, so the
+     * replay fails rather than reload fewer resources than are in doubt.
+     */
+    // protected by {@code lock}
+    private void replay(Segment segment, boolean last) throws IOException {
+        final byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(segment.path);
+        } catch (IOException e) {
+            throw Log.log.readXAResourceRecoveryFileFailed(segment.path, e);
+        }
+        segment.size = bytes.length;
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            final int offset = buffer.position();
+            final int length = buffer.getInt();
+            final int checksum = buffer.getInt();
+            if (length < 9 || length > buffer.remaining()) {
+                damagedRecord(segment, last, offset);
+                return;
+            }
+            crc.reset();
+            crc.update(bytes, buffer.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                damagedRecord(segment, last, offset);
+                return;
+            }
+            final int end = buffer.position() + length;
+            try {
+                replayRecord(segment, bytes, buffer, end);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                damagedRecord(segment, last, offset);
+                return;
+            }
+            buffer.position(end);
+        }
+        if (buffer.hasRemaining()) {
+            damagedRecord(segment, last, buffer.position());
+        }
+    }
+
+    private static void damagedRecord(Segment segment, boolean last, int offset) throws IOException {
+        if (! last) {
+            throw Log.log.damagedXARecoveryLogSegment(offset, segment.path);
+        }
+        // a record which was torn by a crash
+        Log.log.damagedXARecoveryLogRecord(offset, segment.path);
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.WRITE)) {
+            channel.truncate(offset);
+            channel.force(true);
+        }
+        segment.size = offset;
+    }
+
+    // protected by {@code lock}
+    private void replayRecord(Segment segment, byte[] bytes, ByteBuffer buffer, int end) throws IOException {
+        final int type = buffer.get();
+        final long id = buffer.getLong();
+        nextRecordId = Math.max(nextRecordId, id + 1);
+        if (type == REC_ADD) {
+            final int formatId = buffer.getInt();
+            final int gtidLength = buffer.get() & 0xff;
+            final int idsLength = buffer.get() & 0xff;
+            final byte[] ids = new byte[idsLength];
+            buffer.get(ids);
+            final String uriString = new String(bytes, buffer.position(), end - buffer.position(), StandardCharsets.UTF_8);
+            final URI uri;
+            try {
+                uri = new URI(uriString);
+            } catch (URISyntaxException e) {
+                throw Log.log.readURIFromXAResourceRecoveryFileFailed(uriString, segment.path, e);
+            }
+            final Record record = new Record(id, XIDS.wrap(formatId, ids, gtidLength), uri);
+            record.segment = segment;
+            segment.live ++;
+            segment.added ++;
+            final Record old = live.put(Long.valueOf(id), record);
+            if (old != null) {
+                // a copy made by compaction
+                old.segment.live --;
+            }
+        } else if (type == REC_REMOVE) {
+            final Record record = live.remove(Long.valueOf(id));
+            if (record != null) {
+                record.segment.live --;
+            }
+        }
+    }
+
+    private static ByteBuffer encode(int type, Record record) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(128);
+        final DataOutputStream dos = new DataOutputStream(os);
+        dos.writeLong(0); // header, filled in below
+        dos.writeByte(type);
+        dos.writeLong(record.id);
+        if (type == REC_ADD) {
+            final SimpleXid xid = record.xid;
+            dos.writeInt(xid.getFormatId());
+            dos.writeByte(XIDS.getGlobalTransactionIdLength(xid));
+            dos.writeByte(XIDS.getGlobalTransactionIdLength(xid) + XIDS.getBranchQualifierLength(xid));
+            XIDS.writeIdsTo(xid, dos);
+            dos.write(record.uri.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(os.toByteArray());
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, buffer.limit() - HEADER_SIZE);
+        buffer.putInt(0, buffer.limit() - HEADER_SIZE);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer;
+    }
+
+    /**
+     * A segment of the log.
+     */
+    static final class Segment {
+        final long sequence;
+        final Path path;
+        // open while this is the active segment
+        FileChannel channel;
+        long size;
+        // the number of live "add" records in this segment
+        int live;
+        // the number of "add" records in this segment
+        int added;
+
+        Segment(final long sequence, final Path path) {
+            this.sequence = sequence;
+            this.path = path;
+        }
+    }
+
+    /**
+     * An "add" record.
+     */
+    static final class Record {
+        final long id;
+        final SimpleXid xid;
+        final URI uri;
+        // the segment which holds the latest copy of this record; protected by the registry lock
+        Segment segment;
+
+        Record(final long id, final SimpleXid xid, final URI uri) {
+            this.id = id;
+            this.xid = xid;
+            this.uri = uri;
+        }
+    }
+
+    /**
+     * The resources outflowed by a single transaction, as recorded in the log.
+     */
+    private final class LogRegistry extends XAResourceRegistry {
+        private final SimpleXid xid;
+        private final Map<XAResource, Record> records = Collections.synchronizedMap(new LinkedHashMap<>());
+
+        LogRegistry(final SimpleXid xid) {
+            this.xid = xid;
+        }
+
+        XAResource reload(Record record, String nodeName) {
+            final XAResource resource = reloadInDoubtResource(record.uri, nodeName);
+            records.put(resource, record);
+            return resource;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void addResource(XAResource resource, URI uri) throws SystemException {
+            final Record record;
+            try {
+                record = add(xid, uri);
+            } catch (IOException e) {
+                throw Log.log.appendXAResourceRecoveryFileFailed(uri, getActiveSegmentPath(), e);
+            }
+            records.put(resource, record);
+            Log.log.xaResourceAddedToRecoveryRegistry(uri, logPath);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void removeResource(XAResource resource) throws XAException {
+            final Record record = records.remove(resource);
+            if (record != null) {
+                try {
+                    remove(record);
+                } catch (IOException e) {
+                    throw Log.log.removeXAResourceFromRecoveryLogFailed(XAException.XAER_RMERR, resource, getActiveSegmentPath(), e);
+                }
+                // remove resource from in doubt list, in case the resource was in doubt
+                inDoubtResources.remove(resource);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void resourceInDoubt(XAResource resource) {
+            inDoubtResources.add(resource);
+        }
+    }
+}
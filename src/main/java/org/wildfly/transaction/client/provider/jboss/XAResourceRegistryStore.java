@@ -0,0 +1,70 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.jboss;
+
+import javax.transaction.SystemException;
+import javax.transaction.xa.XAResource;
+
+import org.wildfly.transaction.client.LocalTransaction;
+import org.wildfly.transaction.client.XAResourceRegistry;
+
+/**
+ * A persistent store of the resources outflowed by local transactions, from which the resources left in doubt are
+ * recovered.
+ */
+interface XAResourceRegistryStore {
+
+    /**
+     * Returns the XAResourceRegistry for {@code transaction}, creating it if there is none yet.
+     *
+     * @param transaction the transaction
+     * @return the XAResourceRegistry for {@code transaction}
+     * @throws SystemException if an unexpected failure occurs when creating the registry
+     */
+    XAResourceRegistry getXAResourceRegistry(LocalTransaction transaction) throws SystemException;
+
+    /**
+     * Returns all in doubt xa resources, including those recovered from a previous JVM instance.
+     *
+     * @return the in doubt xa resources
+     */
+    XAResource[] getInDoubtXAResources();
+
+    /**
+     * Returns the number of times the registry was forced to disk.
+     *
+     * @return the number of forces
+     */
+    long getForceCount();
+
+    /**
+     * Returns the number of records made durable by forcing the registry to disk.  Divided by the number of forces,
+     * this gives the average number of records each force covered.
+     *
+     * @return the number of records forced
+     */
+    long getForcedRecordCount();
+
+    /**
+     * Returns the total time, in nanoseconds, spent forcing the registry to disk.
+     *
+     * @return the total force time
+     */
+    long getForceNanos();
+}
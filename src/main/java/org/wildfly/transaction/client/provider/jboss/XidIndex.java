@@ -0,0 +1,258 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.jboss;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+import org.wildfly.transaction.client.SimpleXid;
+
+/**
+ * A concurrent map keyed by XID.  Each segment is an open-addressing table which keeps the hash codes of its keys in
+ * a primitive array, so that an entry costs three array slots instead of a map node, and lookups do not allocate.
+ * Lookups are optimistic and only take the segment lock if they overlap a concurrent update.
+ *
+ * @param <V> the value type
+ */
+final class XidIndex<V> {
+    private static final int SEGMENT_SHIFT = 27;
+    private static final int MIN_CAPACITY = 16;
+
+    @SuppressWarnings("unchecked")
+    private final Segment<V>[] segments = new Segment[1 << 32 - SEGMENT_SHIFT];
+
+    XidIndex() {
+        for (int i = 0; i < segments.length; i ++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    V get(final SimpleXid key) {
+        final int hash = spread(key.hashCode());
+        final Segment<V> segment = segmentFor(hash);
+        final StampedLock lock = segment.lock;
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            final V value = segment.find(key, hash);
+            if (lock.validate(stamp)) {
+                return value;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return segment.find(key, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    V put(final SimpleXid key, final V value) {
+        final int hash = spread(key.hashCode());
+        final Segment<V> segment = segmentFor(hash);
+        final long stamp = segment.lock.writeLock();
+        try {
+            return segment.put(key, hash, value, false);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    V putIfAbsent(final SimpleXid key, final V value) {
+        final int hash = spread(key.hashCode());
+        final Segment<V> segment = segmentFor(hash);
+        final long stamp = segment.lock.writeLock();
+        try {
+            return segment.put(key, hash, value, true);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Get the value of a key, computing and adding it if it is absent.  Unlike
+     * {@link java.util.concurrent.ConcurrentHashMap#computeIfAbsent}, the function is called without holding a lock,
+     * so it may be called more than once for the same key; the value which was added first wins.
+     *
+     * @param key the key
+     * @param function the function which computes the value
+     * @return the value
+     */
+    V computeIfAbsent(final SimpleXid key, final Function<? super SimpleXid, ? extends V> function) {
+        final V existing = get(key);
+        if (existing != null) {
+            return existing;
+        }
+        final V value = function.apply(key);
+        final V appearing = putIfAbsent(key, value);
+        return appearing == null ? value : appearing;
+    }
+
+    V remove(final SimpleXid key) {
+        final int hash = spread(key.hashCode());
+        final Segment<V> segment = segmentFor(hash);
+        final long stamp = segment.lock.writeLock();
+        try {
+            return segment.remove(key, hash);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Get the number of entries.  The result is only a snapshot if there are concurrent updates.
+     *
+     * @return the number of entries
+     */
+    int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    private Segment<V> segmentFor(final int hash) {
+        return segments[hash >>> SEGMENT_SHIFT];
+    }
+
+    private static int spread(final int hashCode) {
+        return (hashCode ^ hashCode >>> 16) * 0x9E3779B9;
+    }
+
+    static final class Segment<V> {
+        final StampedLock lock = new StampedLock();
+        // the arrays are replaced together, under the write lock
+        int[] hashes = new int[MIN_CAPACITY];
+        SimpleXid[] keys = new SimpleXid[MIN_CAPACITY];
+        Object[] values = new Object[MIN_CAPACITY];
+        volatile int size;
+
+        @SuppressWarnings("unchecked")
+        V find(final SimpleXid key, final int hash) {
+            // may race with an update; the caller validates the result
+            final SimpleXid[] keys = this.keys;
+            final int[] hashes = this.hashes;
+            final Object[] values = this.values;
+            final int mask = keys.length - 1;
+            if (hashes.length != keys.length || values.length != keys.length) {
+                return null;
+            }
+            for (int i = hash & mask, n = 0; n <= mask; i = i + 1 & mask, n ++) {
+                final SimpleXid candidate = keys[i];
+                if (candidate == null) {
+                    return null;
+                }
+                if (hashes[i] == hash && key.equals(candidate)) {
+                    return (V) values[i];
+                }
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        V put(final SimpleXid key, final int hash, final V value, final boolean onlyIfAbsent) {
+            final SimpleXid[] keys = this.keys;
+            final int mask = keys.length - 1;
+            int i = hash & mask;
+            SimpleXid candidate;
+            while ((candidate = keys[i]) != null) {
+                if (hashes[i] == hash && key.equals(candidate)) {
+                    final V old = (V) values[i];
+                    if (! onlyIfAbsent) {
+                        values[i] = value;
+                    }
+                    return old;
+                }
+                i = i + 1 & mask;
+            }
+            hashes[i] = hash;
+            keys[i] = key;
+            values[i] = value;
+            final int size = this.size + 1;
+            this.size = size;
+            // keep the load factor at or below 3/4
+            if (size > keys.length - (keys.length >> 2)) {
+                resize(keys.length << 1);
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        V remove(final SimpleXid key, final int hash) {
+            final SimpleXid[] keys = this.keys;
+            final int[] hashes = this.hashes;
+            final Object[] values = this.values;
+            final int mask = keys.length - 1;
+            int i = hash & mask;
+            SimpleXid candidate;
+            while ((candidate = keys[i]) != null) {
+                if (hashes[i] == hash && key.equals(candidate)) {
+                    final V old = (V) values[i];
+                    // shift the following entries of the probe sequence back, so that no tombstone is needed
+                    for (int j = i + 1 & mask; keys[j] != null; j = j + 1 & mask) {
+                        final int home = hashes[j] & mask;
+                        if (i <= j ? i < home && home <= j : i < home || home <= j) {
+                            // the entry is still reachable from its home slot
+                            continue;
+                        }
+                        hashes[i] = hashes[j];
+                        keys[i] = keys[j];
+                        values[i] = values[j];
+                        i = j;
+                    }
+                    keys[i] = null;
+                    values[i] = null;
+                    final int size = this.size - 1;
+                    this.size = size;
+                    // give back the memory of a burst once it is over
+                    if (keys.length > MIN_CAPACITY && size < keys.length >> 3) {
+                        resize(keys.length >> 1);
+                    }
+                    return old;
+                }
+                i = i + 1 & mask;
+            }
+            return null;
+        }
+
+        private void resize(final int capacity) {
+            final SimpleXid[] oldKeys = keys;
+            final int[] oldHashes = hashes;
+            final Object[] oldValues = values;
+            final SimpleXid[] newKeys = new SimpleXid[capacity];
+            final int[] newHashes = new int[capacity];
+            final Object[] newValues = new Object[capacity];
+            final int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j ++) {
+                if (oldKeys[j] != null) {
+                    int i = oldHashes[j] & mask;
+                    while (newKeys[i] != null) {
+                        i = i + 1 & mask;
+                    }
+                    newHashes[i] = oldHashes[j];
+                    newKeys[i] = oldKeys[j];
+                    newValues[i] = oldValues[j];
+                }
+            }
+            hashes = newHashes;
+            keys = newKeys;
+            values = newValues;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import static java.security.AccessController.doPrivileged;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.PrivilegedAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.wildfly.transaction.client._private.Log;
+
+/**
+ * A circuit breaker for connection attempts to one peer location.  After a number of consecutive connection
+ * failures the circuit is opened, and further attempts fail immediately until the open time has elapsed.  The next
+ * attempt after that is let through as a probe: if it succeeds the circuit is closed again, otherwise it is reopened.
+ */
+final class CircuitBreaker {
+    static final int FAILURE_THRESHOLD = Integer.parseInt(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.remoting.circuit-breaker.failure-threshold", "5")));
+    static final long OPEN_NANOS = TimeUnit.SECONDS.toNanos(Long.parseLong(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.remoting.circuit-breaker.open-time", "10"))));
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+    }
+
+    private final URI location;
+    private final AtomicReference<State> stateRef = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger failures = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private volatile long openedAt;
+
+    CircuitBreaker(final URI location) {
+        this.location = location;
+    }
+
+    /**
+     * Check whether a connection attempt may be made.  Every attempt which is allowed must be followed by a call to
+     * either {@link #success()} or {@link #failure()}.
+     *
+     * @throws IOException if the circuit is open
+     */
+    void acquire() throws IOException {
+        if (FAILURE_THRESHOLD <= 0) {
+            return;
+        }
+        final State state = stateRef.get();
+        if (state == State.CLOSED || state == State.OPEN && System.nanoTime() - openedAt >= OPEN_NANOS && stateRef.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+            return;
+        }
+        rejected.increment();
+        throw Log.log.circuitOpen(location);
+    }
+
+    void success() {
+        failures.set(0);
+        if (stateRef.getAndSet(State.CLOSED) != State.CLOSED) {
+            Log.log.circuitClosed(location);
+        }
+    }
+
+    void failure() {
+        if (FAILURE_THRESHOLD <= 0) {
+            return;
+        }
+        final int count = failures.incrementAndGet();
+        final State state = stateRef.get();
+        if (state == State.HALF_OPEN || state == State.CLOSED && count >= FAILURE_THRESHOLD) {
+            openedAt = System.nanoTime();
+            if (stateRef.compareAndSet(state, State.OPEN)) {
+                Log.log.circuitOpened(location, TimeUnit.NANOSECONDS.toMillis(OPEN_NANOS), count);
+            }
+        }
+    }
+
+    State getState() {
+        return stateRef.get();
+    }
+
+    long getRejectedCount() {
+        return rejected.sum();
+    }
+}
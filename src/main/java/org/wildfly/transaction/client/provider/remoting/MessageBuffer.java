@@ -0,0 +1,75 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+/**
+ * A buffer in which a message, or a part of one, is encoded so that it can be written to the channel in one piece.
+ * Each thread keeps one buffer for reuse; a buffer must be closed once its contents have been written out.
+ */
+final class MessageBuffer extends ByteArrayOutputStream {
+    private static final int INITIAL_SIZE = 256;
+    // larger buffers are not kept for reuse
+    private static final int MAX_RETAINED_SIZE = 8192;
+
+    private static final ThreadLocal<MessageBuffer> CACHED = ThreadLocal.withInitial(MessageBuffer::new);
+
+    private final DataOutputStream dataOutput = new DataOutputStream(this);
+    private boolean inUse;
+
+    private MessageBuffer() {
+        super(INITIAL_SIZE);
+    }
+
+    /**
+     * Get an empty buffer, reusing the one of the current thread if it is not already in use.
+     *
+     * @return the buffer
+     */
+    static MessageBuffer get() {
+        final MessageBuffer buffer = CACHED.get();
+        if (buffer.inUse) {
+            return new MessageBuffer();
+        }
+        buffer.inUse = true;
+        return buffer;
+    }
+
+    /**
+     * Get a data output view of this buffer.
+     *
+     * @return the data output
+     */
+    DataOutputStream getDataOutput() {
+        return dataOutput;
+    }
+
+    /**
+     * Release this buffer for reuse.  The contents are discarded.
+     */
+    public void close() {
+        reset();
+        if (buf.length > MAX_RETAINED_SIZE) {
+            buf = new byte[INITIAL_SIZE];
+        }
+        inUse = false;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wildfly.transaction.client.provider.remoting;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An executor wrapper which runs tasks with the same key one after another, in submission order, while tasks with
+ * different keys (or no key) run in parallel on the delegate executor.  A task which the delegate rejects is run by
+ * the submitting thread instead.
+ */
+final class OrderedExecutor {
+    private final Executor delegate;
+    // the tasks waiting behind a running task of the same key; guarded by itself
+    private final HashMap<Object, ArrayDeque<Runnable>> queues = new HashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    OrderedExecutor(final Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Execute a task.
+     *
+     * @param key the ordering key, or {@code null} if the task need not be ordered with respect to any other
+     * @param task the task to run
+     */
+    void execute(final Object key, final Runnable task) {
+        queued.incrementAndGet();
+        if (key != null) {
+            synchronized (queues) {
+                final ArrayDeque<Runnable> queue = queues.get(key);
+                if (queue != null) {
+                    // a task with the same key is running; this one is started once it is done
+                    queue.add(task);
+                    return;
+                }
+                queues.put(key, new ArrayDeque<>());
+            }
+        }
+        submit(key, task);
+    }
+
+    /**
+     * Get the executor which runs the tasks.
+     *
+     * @return the delegate executor
+     */
+    Executor getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Get the number of tasks which were submitted but have not yet started to run.
+     *
+     * @return the number of queued tasks
+     */
+    int getQueuedCount() {
+        return queued.get();
+    }
+
+    private void submit(final Object key, final Runnable task) {
+        final Runnable wrapper = () -> {
+            queued.decrementAndGet();
+            try {
+                task.run();
+            } finally {
+                if (key != null) {
+                    runNext(key);
+                }
+            }
+        };
+        try {
+            delegate.execute(wrapper);
+        } catch (RejectedExecutionException e) {
+            wrapper.run();
+        }
+    }
+
+    private void runNext(final Object key) {
+        final Runnable next;
+        synchronized (queues) {
+            final ArrayDeque<Runnable> queue = queues.get(key);
+            next = queue.poll();
+            if (next == null) {
+                queues.remove(key);
+                return;
+            }
+        }
+        submit(key, next);
+    }
+}
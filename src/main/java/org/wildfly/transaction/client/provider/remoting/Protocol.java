@@ -29,6 +29,7 @@ import java.nio.charset.StandardCharsets;
 import javax.transaction.xa.Xid;
 
 import org.wildfly.transaction.client.SimpleXid;
+import org.wildfly.transaction.client._private.XidAccess;
 
 /**
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
@@ -38,7 +39,8 @@ class Protocol {
     public static final boolean UNSIGNED = false;
 
     public static final int VERSION_MIN = 0;
-    public static final int VERSION_MAX = 0;
+    // version 1: capabilities are negotiated when the channel is opened
+    public static final int VERSION_MAX = 1;
 
     // all msgs are initiated by the client
     // msg format
@@ -60,23 +62,25 @@ class Protocol {
     // Roll back the transaction with the given XID
     public static final int M_XA_ROLLBACK   = 0x02; // P_XID(gtid) [ P_SEC_CONTEXT ]
     // Prepare the transaction with the given XID
-    public static final int M_XA_PREPARE    = 0x03; // P_XID(gtid) [ P_SEC_CONTEXT ]
+    public static final int M_XA_PREPARE    = 0x03; // P_XID(gtid) [ P_SEC_CONTEXT ] [ P_TIME_REMAINING ]
     // Commit the transaction with the given XID
     public static final int M_XA_COMMIT     = 0x04; // P_XID(gtid) [ P_SEC_CONTEXT ] [ P_ONE_PHASE ]
     // Forget the transaction with the given XID
     public static final int M_XA_FORGET     = 0x05; // P_XID(gtid) [ P_SEC_CONTEXT ]
     // Execute before-completion for the transaction with the given XID
-    public static final int M_XA_BEFORE     = 0x06; // P_XID(gtid) [ P_SEC_CONTEXT ]
-    // Get a list of XIDs to recover
-    public static final int M_XA_RECOVER    = 0x07; // [ P_SEC_CONTEXT ] [ P_PARENT_NAME ]
+    public static final int M_XA_BEFORE     = 0x06; // P_XID(gtid) [ P_SEC_CONTEXT ] [ P_TIME_REMAINING ]
+    // Get a list of XIDs to recover; with P_RECOVER_FLAGS, get one page of a recovery scan (requires F_RECOVER_PAGED)
+    public static final int M_XA_RECOVER    = 0x07; // [ P_SEC_CONTEXT ] [ P_PARENT_NAME ] [ P_RECOVER_FLAGS [ P_RECOVER_SCAN ] ]
     // Mark the XA transaction as rollback-only; used if the resource was called with TMFAIL
     public static final int M_XA_RB_ONLY    = 0x08; // P_XID(gtid) [ P_SEC_CONTEXT ]
-    // Unused
-    // unused                               = 0x09;
+    // Execute before-completion and then prepare the transaction with the given XID (requires F_BEFORE_PREPARE)
+    public static final int M_XA_BEFORE_PREPARE = 0x09; // P_XID(gtid) [ P_SEC_CONTEXT ] [ P_TIME_REMAINING ]
     // TXN_CONTEXT is released (even for error)
     public static final int M_UT_COMMIT     = 0x0A; // P_TXN_CONTEXT [ P_SEC_CONTEXT ]
     // TXN_CONTEXT is released (even for error)
     public static final int M_UT_ROLLBACK   = 0x0B; // P_TXN_CONTEXT [ P_SEC_CONTEXT ]
+    // Several single-XID XA requests in one frame; each entry is a complete request with its own inv ID (requires F_BATCH)
+    public static final int M_BATCH         = 0x0C; // P_BATCH_ENTRY...
 
     // server -> client
 
@@ -89,12 +93,15 @@ class Protocol {
     public static final int M_RESP_XA_FORGET    = 0x15; // [ P_XA_ERROR | P_SEC_EXC ]
     public static final int M_RESP_XA_BEFORE    = 0x16; // [ P_XA_ERROR | P_SEC_EXC ]
 
-    public static final int M_RESP_XA_RECOVER   = 0x17; // P_XID... | P_XA_ERROR | P_SEC_EXC
+    public static final int M_RESP_XA_RECOVER   = 0x17; // P_XID... [ P_RECOVER_MORE P_RECOVER_SCAN ] | P_XA_ERROR | P_SEC_EXC
 
     public static final int M_RESP_XA_RB_ONLY   = 0x18; // [ P_XA_ERROR | P_SEC_EXC ]
+    public static final int M_RESP_XA_BEFORE_PREPARE = 0x19; // [ P_XA_RDONLY | P_XA_ERROR | P_SEC_EXC ]
 
     public static final int M_RESP_UT_COMMIT    = 0x1A; // [ P_UT_RB_EXC | P_UT_HME_EXC | P_UT_HRE_EXC | P_UT_SYS_EXC | P_SEC_EXC ]
     public static final int M_RESP_UT_ROLLBACK  = 0x1B; // [ P_UT_SYS_EXC | P_SEC_EXC ]
+    // one entry per request entry, each a complete response with the inv ID of its request (in any order)
+    public static final int M_RESP_BATCH        = 0x1C; // P_BATCH_ENTRY...
 
     public static final int M_RESP_PARAM_ERROR  = 0xFE; // empty (missing required or found unknown parameter)
     public static final int M_RESP_ERROR        = 0xFF; // empty (unknown request code)
@@ -105,10 +112,15 @@ class Protocol {
     public static final int P_XID           = 0x01; // body = XID
     public static final int P_ONE_PHASE     = 0x02; // len=0
     public static final int P_PARENT_NAME   = 0x03; // body = utf8
-    // unused                                 0x04
-    // unused                                 0x05
-    // unused                                 0x06
+    public static final int P_TIME_REMAINING = 0x04; // body = uint seconds before the transaction times out (requires F_DEADLINE)
+    public static final int P_RECOVER_FLAGS = 0x05; // body = packed-int XAResource scan flags (requires F_RECOVER_PAGED)
+    public static final int P_RECOVER_MORE  = 0x06; // len=0; the scan has further pages
     public static final int P_XA_RDONLY     = 0x07; // len=0
+    // with P_XID, registers the XID under the handle; alone, stands for the registered XID (requires F_XID_HANDLE)
+    // the handle is released by M_XA_COMMIT, M_XA_ROLLBACK and M_XA_FORGET, and by a read-only or rollback prepare vote
+    public static final int P_XID_HANDLE    = 0x08; // body = uint client-chosen handle, never reused on the channel
+    // returned with P_RECOVER_MORE; continues or ends that scan when sent back (requires F_RECOVER_PAGED)
+    public static final int P_RECOVER_SCAN  = 0x09; // body = uint server-chosen scan ID
 
     // Exception types format:
     //  byte 0..3 = error code (XA and sys exceptions only)
@@ -126,9 +138,31 @@ class Protocol {
 
     public static final int P_VERSION_ERROR = 0x40; // additional capabilities must be negotiated (s -> c)
 
+    // capability parameters (M_CAPABILITY and M_RESP_CAPABILITY only); the server acknowledges each one that it
+    // recognizes with the negotiated value, and unacknowledged capabilities are treated as unsupported
+
+    public static final int P_CAP_VERSION   = 0x50; // body = packed-int protocol version (client max -> agreed)
+    public static final int P_CAP_FEATURES  = 0x51; // body = uint32 feature bits (offered -> agreed)
+
+    public static final int P_BATCH_ENTRY   = 0x60; // body = inv ID, M_ message type, P_ parameters (M_BATCH and M_RESP_BATCH only)
+
+    // feature bits; a feature may only be used on a channel once both peers have agreed to it
+
+    public static final int F_BEFORE_PREPARE = 1 << 0; // M_XA_BEFORE_PREPARE is understood
+    public static final int F_BATCH          = 1 << 1; // M_BATCH is understood
+    public static final int F_DEADLINE       = 1 << 2; // P_TIME_REMAINING is understood
+    public static final int F_RECOVER_PAGED  = 1 << 3; // P_RECOVER_FLAGS is understood
+    public static final int F_XID_HANDLE     = 1 << 4; // P_XID_HANDLE is understood
+
+    public static final int SUPPORTED_FEATURES = F_BEFORE_PREPARE | F_BATCH | F_DEADLINE | F_RECOVER_PAGED | F_XID_HANDLE;
+
+    public static final int MAX_XID_HANDLES = 1024; // XID handles a client may have registered at once (F_XID_HANDLE)
+
     public static final int P_SEC_CONTEXT   = 0xF0; // uint32 security context association ID
     public static final int P_TXN_CONTEXT   = 0xF1; // uint32 transaction context association ID
 
+    private static final XidAccess XIDS = XidAccess.getInstance();
+
     public static void writeParam(int param, OutputStream os, int val, boolean signed) throws IOException {
         writeInt8(os, param);
         final int len;
@@ -175,6 +209,20 @@ class Protocol {
             writeParam(param, os);
             return;
         }
+        if (xid instanceof SimpleXid) {
+            final SimpleXid simpleXid = (SimpleXid) xid;
+            final int gtidLen = XIDS.getGlobalTransactionIdLength(simpleXid);
+            final int bqLen = XIDS.getBranchQualifierLength(simpleXid);
+            if (gtidLen > Xid.MAXGTRIDSIZE || bqLen > Xid.MAXBQUALSIZE) {
+                throw new IOException("Cannot write invalid XID");
+            }
+            writeInt8(os, param);
+            writePackedUnsignedInt32(os, gtidLen + bqLen + 5);
+            writeInt32BE(os, simpleXid.getFormatId());
+            writeInt8(os, gtidLen);
+            XIDS.writeIdsTo(simpleXid, os);
+            return;
+        }
         final int formatId = xid.getFormatId();
         final byte[] gtid = xid.getGlobalTransactionId();
         final byte[] bq = xid.getBranchQualifier();
@@ -201,6 +249,19 @@ class Protocol {
         return t;
     }
 
+    public static void skipParam(InputStream is, int len) throws IOException {
+        while (len > 0) {
+            long skipped = is.skip(len);
+            if (skipped <= 0) {
+                if (is.read() == -1) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            len -= skipped;
+        }
+    }
+
     public static String readStringParam(InputStream is, int len) throws IOException {
         byte[] b = new byte[len];
         readFully(is, b);
@@ -215,11 +276,9 @@ class Protocol {
         if (len < gtidLen) {
             throw new EOFException();
         }
-        final byte[] gtid = gtidLen == 0 ? SimpleXid.NO_BYTES : new byte[gtidLen];
-        readFully(is, gtid);
-        len -= gtidLen;
-        final byte[] bq = len == 0 ? SimpleXid.NO_BYTES : new byte[len];
-        readFully(is, bq);
-        return new SimpleXid(formatId, gtid, bq);
+        // both components are read into one array, which is ours alone, so it need not be copied again
+        final byte[] ids = len == 0 ? SimpleXid.NO_BYTES : new byte[len];
+        readFully(is, ids);
+        return XIDS.wrap(formatId, ids, gtidLen);
     }
 }
@@ -18,11 +18,16 @@
 
 package org.wildfly.transaction.client.provider.remoting;
 
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+
 import javax.transaction.SystemException;
 import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
 
 import org.jboss.remoting3.ConnectionPeerIdentity;
+import org.wildfly.transaction.client._private.Stages;
 import org.wildfly.transaction.client.spi.SimpleTransactionControl;
 
 /**
@@ -44,4 +49,186 @@ public interface RemotingOperations {
     Xid[] recover(int flag, String parentName, ConnectionPeerIdentity peerIdentity) throws XAException;
 
     SimpleTransactionControl begin(ConnectionPeerIdentity peerIdentity) throws SystemException;
+
+    /**
+     * Asynchronously commit the transaction with the given XID.  The returned stage is completed exceptionally with
+     * an {@link XAException} or {@link SecurityException} if the operation fails.  The default implementation
+     * delegates to the blocking {@link #commit(Xid, boolean, ConnectionPeerIdentity)} method.
+     *
+     * @param xid the transaction ID (must not be {@code null})
+     * @param onePhase {@code true} to commit in a single phase, {@code false} otherwise
+     * @param peerIdentity the peer identity to use (must not be {@code null})
+     * @return the completion stage of the operation (not {@code null})
+     */
+    default CompletionStage<Void> commitAsync(Xid xid, boolean onePhase, ConnectionPeerIdentity peerIdentity) {
+        return Stages.completed(() -> {
+            commit(xid, onePhase, peerIdentity);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronously forget the transaction with the given XID.  The default implementation delegates to the
+     * blocking {@link #forget(Xid, ConnectionPeerIdentity)} method.
+     *
+     * @param xid the transaction ID (must not be {@code null})
+     * @param peerIdentity the peer identity to use (must not be {@code null})
+     * @return the completion stage of the operation (not {@code null})
+     */
+    default CompletionStage<Void> forgetAsync(Xid xid, ConnectionPeerIdentity peerIdentity) {
+        return Stages.completed(() -> {
+            forget(xid, peerIdentity);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronously prepare the transaction with the given XID.  The default implementation delegates to the
+     * blocking {@link #prepare(Xid, ConnectionPeerIdentity)} method.
+     *
+     * @param xid the transaction ID (must not be {@code null})
+     * @param peerIdentity the peer identity to use (must not be {@code null})
+     * @return the completion stage of the operation, yielding {@code XA_OK} or {@code XA_RDONLY} (not {@code null})
+     */
+    default CompletionStage<Integer> prepareAsync(Xid xid, ConnectionPeerIdentity peerIdentity) {
+        return Stages.completed(() -> Integer.valueOf(prepare(xid, peerIdentity)));
+    }
+
+    /**
+     * Asynchronously roll back the transaction with the given XID.  The default implementation delegates to the
+     * blocking {@link #rollback(Xid, ConnectionPeerIdentity)} method.
+     *
+     * @param xid the transaction ID (must not be {@code null})
+     * @param peerIdentity the peer identity to use (must not be {@code null})
+     * @return the completion stage of the operation (not {@code null})
+     */
+    default CompletionStage<Void> rollbackAsync(Xid xid, ConnectionPeerIdentity peerIdentity) {
+        return Stages.completed(() -> {
+            rollback(xid, peerIdentity);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronously mark the transaction with the given XID as rollback-only.  The default implementation delegates
+     * to the blocking {@link #setRollbackOnly(Xid, ConnectionPeerIdentity)} method.
+     *
+     * @param xid the transaction ID (must not be {@code null})
+     * @param peerIdentity the peer identity to use (must not be {@code null})
+     * @return the completion stage of the operation (not {@code null})
+     */
+    default CompletionStage<Void> setRollbackOnlyAsync(Xid xid, ConnectionPeerIdentity peerIdentity) {
+        return Stages.completed(() -> {
+            setRollbackOnly(xid, peerIdentity);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronously run before-completion processing for the transaction with the given XID.  The default
+     * implementation delegates to the blocking {@link #beforeCompletion(Xid, ConnectionPeerIdentity)} method.
+     *
+     * @param xid the transaction ID (must not be {@code null})
+     * @param peerIdentity the peer identity to use (must not be {@code null})
+     * @return the completion stage of the operation (not {@code null})
+     */
+    default CompletionStage<Void> beforeCompletionAsync(Xid xid, ConnectionPeerIdentity peerIdentity) {
+        return Stages.completed(() -> {
+            beforeCompletion(xid, peerIdentity);
+            return null;
+        });
+    }
+
+    /**
+     * Determine whether {@link #beforeCompletionAndPrepareAsync(Xid, ConnectionPeerIdentity)} is done in a single
+     * exchange with the peer.  The default implementation returns {@code false}.
+     *
+     * @return {@code true} if before-completion and prepare are combined, {@code false} otherwise
+     */
+    default boolean isCombinedPrepareSupported() {
+        return false;
+    }
+
+    /**
+     * Asynchronously run before-completion processing for, and then prepare, the transaction with the given XID.  The
+     * default implementation runs {@link #beforeCompletionAsync(Xid, ConnectionPeerIdentity)} followed by
+     * {@link #prepareAsync(Xid, ConnectionPeerIdentity)}.
+     *
+     * @param xid the transaction ID (must not be {@code null})
+     * @param peerIdentity the peer identity to use (must not be {@code null})
+     * @return the completion stage of the operation, yielding the prepare vote (not {@code null})
+     */
+    default CompletionStage<Integer> beforeCompletionAndPrepareAsync(Xid xid, ConnectionPeerIdentity peerIdentity) {
+        return beforeCompletionAsync(xid, peerIdentity).thenCompose(ignored -> prepareAsync(xid, peerIdentity));
+    }
+
+    /**
+     * Asynchronously run before-completion processing for the transaction with the given XID, passing on the remaining
+     * time of the transaction.  The default implementation ignores the remaining time.
+     *
+     * @param xid the transaction ID (must not be {@code null})
+     * @param remainingTime the remaining time of the transaction in seconds, or -1 if it is not known
+     * @param peerIdentity the peer identity to use (must not be {@code null})
+     * @return the completion stage of the operation (not {@code null})
+     */
+    default CompletionStage<Void> beforeCompletionAsync(Xid xid, int remainingTime, ConnectionPeerIdentity peerIdentity) {
+        return beforeCompletionAsync(xid, peerIdentity);
+    }
+
+    /**
+     * Asynchronously prepare the transaction with the given XID, passing on the remaining time of the transaction.  The
+     * default implementation ignores the remaining time.
+     *
+     * @param xid the transaction ID (must not be {@code null})
+     * @param remainingTime the remaining time of the transaction in seconds, or -1 if it is not known
+     * @param peerIdentity the peer identity to use (must not be {@code null})
+     * @return the completion stage of the operation, yielding the prepare vote (not {@code null})
+     */
+    default CompletionStage<Integer> prepareAsync(Xid xid, int remainingTime, ConnectionPeerIdentity peerIdentity) {
+        return prepareAsync(xid, peerIdentity);
+    }
+
+    /**
+     * Asynchronously run before-completion processing for, and then prepare, the transaction with the given XID,
+     * passing on the remaining time of the transaction.  The default implementation ignores the remaining time.
+     *
+     * @param xid the transaction ID (must not be {@code null})
+     * @param remainingTime the remaining time of the transaction in seconds, or -1 if it is not known
+     * @param peerIdentity the peer identity to use (must not be {@code null})
+     * @return the completion stage of the operation, yielding the prepare vote (not {@code null})
+     */
+    default CompletionStage<Integer> beforeCompletionAndPrepareAsync(Xid xid, int remainingTime, ConnectionPeerIdentity peerIdentity) {
+        return beforeCompletionAndPrepareAsync(xid, peerIdentity);
+    }
+
+    /**
+     * Asynchronously acquire the list of transactions to recover.  The default implementation delegates to the
+     * blocking {@link #recover(int, String, ConnectionPeerIdentity)} method.
+     *
+     * @param flag the recovery flag
+     * @param parentName the parent node name
+     * @param peerIdentity the peer identity to use (must not be {@code null})
+     * @return the completion stage of the operation, yielding the (possibly empty) XID array (not {@code null})
+     */
+    default CompletionStage<Xid[]> recoverAsync(int flag, String parentName, ConnectionPeerIdentity peerIdentity) {
+        return Stages.completed(() -> recover(flag, parentName, peerIdentity));
+    }
+
+    /**
+     * Perform a complete recovery scan, passing each XID to the given consumer as it is received.  Implementations
+     * may retrieve the XIDs from the peer a page at a time so that the complete list never has to be held at once.
+     * The default implementation delegates to the blocking {@link #recover(int, String, ConnectionPeerIdentity)}
+     * method.
+     *
+     * @param parentName the parent node name
+     * @param peerIdentity the peer identity to use (must not be {@code null})
+     * @param consumer the consumer of recovered XIDs (must not be {@code null})
+     * @throws XAException if the scan failed
+     */
+    default void recover(String parentName, ConnectionPeerIdentity peerIdentity, Consumer<Xid> consumer) throws XAException {
+        for (Xid xid : recover(XAResource.TMSTARTRSCAN, parentName, peerIdentity)) {
+            consumer.accept(xid);
+        }
+        recover(XAResource.TMENDRSCAN, parentName, peerIdentity);
+    }
 }
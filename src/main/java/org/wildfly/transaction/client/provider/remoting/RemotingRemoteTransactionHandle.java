@@ -18,7 +18,15 @@
 
 package org.wildfly.transaction.client.provider.remoting;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.transaction.HeuristicMixedException;
@@ -30,7 +38,7 @@ import javax.transaction.SystemException;
 import org.jboss.remoting3.Connection;
 import org.jboss.remoting3.MessageInputStream;
 import org.jboss.remoting3.MessageOutputStream;
-import org.jboss.remoting3.util.BlockingInvocation;
+import org.jboss.remoting3.util.Invocation;
 import org.jboss.remoting3.util.InvocationTracker;
 import org.jboss.remoting3.util.StreamUtils;
 import org.wildfly.common.Assert;
@@ -91,7 +99,7 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
             statusRef.set(Status.STATUS_COMMITTING);
             try {
                 final InvocationTracker invocationTracker = channel.getInvocationTracker();
-                final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
+                final ResponseInvocation invocation = invocationTracker.addInvocation(ResponseInvocation::new);
                 // write request
                 try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
                     os.writeShort(invocation.getIndex());
@@ -103,63 +111,54 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
                     statusRef.set(Status.STATUS_UNKNOWN);
                     throw Log.log.failedToSend(e);
                 }
-                try (BlockingInvocation.Response response = invocation.getResponse()) {
-                    try (MessageInputStream is = response.getInputStream()) {
-                        if (is.readUnsignedByte() != Protocol.M_RESP_UT_COMMIT) {
-                            throw Log.log.unknownResponse();
-                        }
-                        int id = is.read();
-                        if (id == -1) {
-                            statusRef.set(Status.STATUS_COMMITTED);
+                try (DataInputStream is = invocation.awaitResponse(channel)) {
+                    if (is.readUnsignedByte() != Protocol.M_RESP_UT_COMMIT) {
+                        throw Log.log.unknownResponse();
+                    }
+                    int id = is.read();
+                    if (id == -1) {
+                        statusRef.set(Status.STATUS_COMMITTED);
+                    } else {
+                        int len = StreamUtils.readPackedUnsignedInt32(is);
+                        if (id == Protocol.P_UT_HME_EXC) {
+                            statusRef.set(Status.STATUS_UNKNOWN);
+                            final HeuristicMixedException e = Log.log.peerHeuristicMixedException();
+                            e.initCause(RemoteExceptionCause.readFromStream(is));
+                            throw e;
+                        } else if (id == Protocol.P_UT_HRE_EXC) {
+                            statusRef.set(Status.STATUS_UNKNOWN);
+                            final HeuristicRollbackException e = Log.log.peerHeuristicRollbackException();
+                            e.initCause(RemoteExceptionCause.readFromStream(is));
+                            throw e;
+                        } else if (id == Protocol.P_UT_IS_EXC) {
+                            statusRef.set(Status.STATUS_UNKNOWN);
+                            final IllegalStateException e = Log.log.peerIllegalStateException();
+                            e.initCause(RemoteExceptionCause.readFromStream(is));
+                            throw e;
+                        } else if (id == Protocol.P_UT_RB_EXC) {
+                            statusRef.set(Status.STATUS_ROLLEDBACK);
+                            final RollbackException e = Log.log.transactionRolledBackByPeer();
+                            e.initCause(RemoteExceptionCause.readFromStream(is));
+                            throw e;
+                        } else if (id == Protocol.P_UT_SYS_EXC) {
+                            statusRef.set(Status.STATUS_UNKNOWN);
+                            final SystemException e = Log.log.peerSystemException();
+                            e.errorCode = is.readInt();
+                            e.initCause(RemoteExceptionCause.readFromStream(is));
+                            throw e;
+                        } else if (id == Protocol.P_SEC_EXC) {
+                            statusRef.set(oldVal);
+                            final SecurityException e = Log.log.peerSecurityException();
+                            e.initCause(RemoteExceptionCause.readFromStream(is));
+                            throw e;
                         } else {
-                            int len = StreamUtils.readPackedUnsignedInt32(is);
-                            if (id == Protocol.P_UT_HME_EXC) {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                final HeuristicMixedException e = Log.log.peerHeuristicMixedException();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_UT_HRE_EXC) {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                final HeuristicRollbackException e = Log.log.peerHeuristicRollbackException();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_UT_IS_EXC) {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                final IllegalStateException e = Log.log.peerIllegalStateException();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_UT_RB_EXC) {
-                                statusRef.set(Status.STATUS_ROLLEDBACK);
-                                final RollbackException e = Log.log.transactionRolledBackByPeer();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_UT_SYS_EXC) {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                final SystemException e = Log.log.peerSystemException();
-                                e.errorCode = is.readInt();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_SEC_EXC) {
-                                statusRef.set(oldVal);
-                                final SecurityException e = Log.log.peerSecurityException();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                throw Log.log.unknownResponse();
-                            }
+                            statusRef.set(Status.STATUS_UNKNOWN);
+                            throw Log.log.unknownResponse();
                         }
-                    } catch (IOException e) {
-                        statusRef.set(Status.STATUS_UNKNOWN);
-                        throw Log.log.responseFailed(e);
                     }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    statusRef.set(Status.STATUS_UNKNOWN);
-                    throw Log.log.operationInterrupted();
                 } catch (IOException e) {
-                    // failed to close the response, but we don't care too much
-                    Log.log.inboundException(e);
+                    statusRef.set(Status.STATUS_UNKNOWN);
+                    throw Log.log.responseFailed(e);
                 }
             } finally {
                 statusRef.compareAndSet(Status.STATUS_COMMITTING, Status.STATUS_UNKNOWN);
@@ -181,7 +180,7 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
             statusRef.set(Status.STATUS_ROLLING_BACK);
             try {
                 final InvocationTracker invocationTracker = channel.getInvocationTracker();
-                final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
+                final ResponseInvocation invocation = invocationTracker.addInvocation(ResponseInvocation::new);
                 // write request
                 try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
                     os.writeShort(invocation.getIndex());
@@ -193,48 +192,39 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
                     statusRef.set(Status.STATUS_UNKNOWN);
                     throw Log.log.failedToSend(e);
                 }
-                try (BlockingInvocation.Response response = invocation.getResponse()) {
-                    try (MessageInputStream is = response.getInputStream()) {
-                        if (is.readUnsignedByte() != Protocol.M_RESP_UT_ROLLBACK) {
-                            throw Log.log.unknownResponse();
-                        }
-                        int id = is.read();
-                        if (id == -1) {
-                            statusRef.set(Status.STATUS_ROLLEDBACK);
+                try (DataInputStream is = invocation.awaitResponse(channel)) {
+                    if (is.readUnsignedByte() != Protocol.M_RESP_UT_ROLLBACK) {
+                        throw Log.log.unknownResponse();
+                    }
+                    int id = is.read();
+                    if (id == -1) {
+                        statusRef.set(Status.STATUS_ROLLEDBACK);
+                    } else {
+                        int len = StreamUtils.readPackedUnsignedInt32(is);
+                        if (id == Protocol.P_UT_IS_EXC) {
+                            statusRef.set(Status.STATUS_UNKNOWN);
+                            final IllegalStateException e = Log.log.peerIllegalStateException();
+                            e.initCause(RemoteExceptionCause.readFromStream(is));
+                            throw e;
+                        } else if (id == Protocol.P_UT_SYS_EXC) {
+                            statusRef.set(Status.STATUS_UNKNOWN);
+                            final SystemException e = Log.log.peerSystemException();
+                            e.errorCode = is.readInt();
+                            e.initCause(RemoteExceptionCause.readFromStream(is));
+                            throw e;
+                        } else if (id == Protocol.P_SEC_EXC) {
+                            statusRef.set(oldVal);
+                            final SecurityException e = Log.log.peerSecurityException();
+                            e.initCause(RemoteExceptionCause.readFromStream(is));
+                            throw e;
                         } else {
-                            int len = StreamUtils.readPackedUnsignedInt32(is);
-                            if (id == Protocol.P_UT_IS_EXC) {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                final IllegalStateException e = Log.log.peerIllegalStateException();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_UT_SYS_EXC) {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                final SystemException e = Log.log.peerSystemException();
-                                e.errorCode = is.readInt();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else if (id == Protocol.P_SEC_EXC) {
-                                statusRef.set(oldVal);
-                                final SecurityException e = Log.log.peerSecurityException();
-                                e.initCause(RemoteExceptionCause.readFromStream(is));
-                                throw e;
-                            } else {
-                                statusRef.set(Status.STATUS_UNKNOWN);
-                                throw Log.log.unknownResponse();
-                            }
+                            statusRef.set(Status.STATUS_UNKNOWN);
+                            throw Log.log.unknownResponse();
                         }
-                    } catch (IOException e) {
-                        statusRef.set(Status.STATUS_UNKNOWN);
-                        throw Log.log.responseFailed(e);
                     }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    statusRef.set(Status.STATUS_UNKNOWN);
-                    throw Log.log.operationInterrupted();
                 } catch (IOException e) {
-                    // failed to close the response, but we don't care too much
-                    Log.log.inboundException(e);
+                    statusRef.set(Status.STATUS_UNKNOWN);
+                    throw Log.log.responseFailed(e);
                 }
             } finally {
                 statusRef.compareAndSet(Status.STATUS_ROLLING_BACK, Status.STATUS_UNKNOWN);
@@ -269,4 +259,52 @@ class RemotingRemoteTransactionHandle implements SimpleTransactionControl {
     Connection getConnection() {
         return channel.getConnection();
     }
+
+    /**
+     * An invocation whose response is read in full when it arrives, so that the waiting thread can give up on it
+     * after the configured response timeout.
+     */
+    static final class ResponseInvocation extends Invocation {
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        ResponseInvocation(final int index) {
+            super(index);
+        }
+
+        public void handleResponse(final int parameter, final MessageInputStream is) {
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[256];
+            try {
+                int res;
+                while ((res = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, res);
+                }
+                future.complete(os.toByteArray());
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        public void handleClosed() {
+            future.completeExceptionally(new ClosedChannelException());
+        }
+
+        DataInputStream awaitResponse(final TransactionClientChannel channel) throws SystemException, IOException {
+            final int timeout = TransactionClientChannel.RESPONSE_TIMEOUT;
+            final byte[] bytes;
+            try {
+                bytes = timeout > 0 ? future.get(timeout, TimeUnit.SECONDS) : future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Log.log.operationInterrupted();
+            } catch (TimeoutException e) {
+                channel.releaseTimedOut(this);
+                throw Log.log.responseTimedOut(TimeUnit.SECONDS.toMillis(timeout));
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+            return new DataInputStream(new ByteArrayInputStream(bytes));
+        }
+    }
 }
@@ -24,7 +24,10 @@ import java.io.IOException;
 import java.net.URI;
 import java.security.GeneralSecurityException;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.net.ssl.SSLContext;
 import javax.transaction.SystemException;
@@ -57,21 +60,55 @@ class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
     private final AuthenticationConfiguration authenticationConfiguration;
     private final Endpoint endpoint;
     private final RemotingFallbackPeerProvider fallbackProvider;
+    private final CircuitBreaker circuitBreaker;
     private final Set<Xid> rollbackOnlyXids = new ConcurrentHashMap<Xid, Boolean>().keySet(Boolean.TRUE);
+    private final AtomicReference<Resolved> resolvedRef = new AtomicReference<>();
 
-    RemotingRemoteTransactionPeer(final URI location, final SSLContext sslContext, final AuthenticationConfiguration authenticationConfiguration, final Endpoint endpoint, final RemotingFallbackPeerProvider fallbackProvider) {
+    RemotingRemoteTransactionPeer(final URI location, final SSLContext sslContext, final AuthenticationConfiguration authenticationConfiguration, final Endpoint endpoint, final RemotingFallbackPeerProvider fallbackProvider, final CircuitBreaker circuitBreaker) {
         this.location = location;
         this.sslContext = sslContext;
         this.authenticationConfiguration = authenticationConfiguration;
         this.endpoint = endpoint;
         this.fallbackProvider = fallbackProvider;
+        this.circuitBreaker = circuitBreaker;
     }
 
     ConnectionPeerIdentity getPeerIdentity() throws IOException {
+        final AuthenticationContext authenticationContext = AuthenticationContext.captureCurrent();
+        Resolved resolved = resolvedRef.get();
+        if (resolved != null && resolved.authenticationContext == authenticationContext) {
+            final ConnectionPeerIdentity identity = resolved.identity;
+            if (identity != null) {
+                return identity;
+            }
+        } else {
+            resolved = resolve(authenticationContext);
+        }
+        circuitBreaker.acquire();
+        final ConnectionPeerIdentity identity;
+        boolean ok = false;
+        try {
+            identity = endpoint.getConnectedIdentity(location, resolved.sslContext, resolved.authenticationConfiguration).get();
+            ok = true;
+        } finally {
+            if (ok) {
+                circuitBreaker.success();
+            } else {
+                circuitBreaker.failure();
+            }
+        }
+        final Resolved withIdentity = new Resolved(resolved, identity);
+        resolvedRef.set(withIdentity);
+        // forget the resolution once its connection goes away, so that the next call matches the rules again and reconnects
+        identity.getConnection().addCloseHandler((connection, ignored) -> resolvedRef.compareAndSet(withIdentity, null));
+        return identity;
+    }
+
+    private Resolved resolve(final AuthenticationContext authenticationContext) throws IOException {
         SSLContext finalSslContext;
         if (sslContext == null) {
             try {
-                finalSslContext = CLIENT.getSSLContext(location, AuthenticationContext.captureCurrent(), "jta", "jboss");
+                finalSslContext = CLIENT.getSSLContext(location, authenticationContext, "jta", "jboss");
             } catch (GeneralSecurityException e) {
                 throw new IOException(e);
             }
@@ -80,11 +117,11 @@ class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
         }
         AuthenticationConfiguration finalAuthenticationConfiguration;
         if (authenticationConfiguration == null) {
-            finalAuthenticationConfiguration = CLIENT.getAuthenticationConfiguration(location, AuthenticationContext.captureCurrent(), -1, "jta", "jboss");
+            finalAuthenticationConfiguration = CLIENT.getAuthenticationConfiguration(location, authenticationContext, -1, "jta", "jboss");
         } else {
             finalAuthenticationConfiguration = authenticationConfiguration;
         }
-        return endpoint.getConnectedIdentity(location, finalSslContext, finalAuthenticationConfiguration).get();
+        return new Resolved(authenticationContext, finalSslContext, finalAuthenticationConfiguration, null);
     }
 
     ConnectionPeerIdentity getPeerIdentityXA() throws XAException {
@@ -142,6 +179,11 @@ class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
 
     @NotNull
     public SubordinateTransactionControl lookupXid(final Xid xid) throws XAException {
+        return lookupXid(xid, -1);
+    }
+
+    @NotNull
+    public SubordinateTransactionControl lookupXid(final Xid xid, final int remainingTime) throws XAException {
         return new SubordinateTransactionControl() {
             public void rollback() throws XAException {
                 try {
@@ -193,9 +235,94 @@ class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
                     rollbackOnlyXids.remove(xid);
                 }
             }
+
+            public CompletionStage<Void> rollbackAsync() {
+                final CompletionStage<Void> stage;
+                try {
+                    final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                    stage = getOperationsXA(peerIdentity.getConnection()).rollbackAsync(xid, peerIdentity);
+                } catch (XAException | RuntimeException e) {
+                    rollbackOnlyXids.remove(xid);
+                    return failed(e);
+                }
+                return stage.whenComplete((r, t) -> rollbackOnlyXids.remove(xid));
+            }
+
+            public CompletionStage<Void> beforeCompletionAsync() {
+                try {
+                    final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                    return getOperationsXA(peerIdentity.getConnection()).beforeCompletionAsync(xid, remainingTime, peerIdentity);
+                } catch (XAException | RuntimeException e) {
+                    return failed(e);
+                }
+            }
+
+            public CompletionStage<Integer> prepareAsync() {
+                final CompletionStage<Integer> stage;
+                try {
+                    final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                    stage = getOperationsXA(peerIdentity.getConnection()).prepareAsync(xid, remainingTime, peerIdentity);
+                } catch (XAException | RuntimeException e) {
+                    rollbackOnlyXids.remove(xid);
+                    return failed(e);
+                }
+                return stage.whenComplete((r, t) -> rollbackOnlyXids.remove(xid));
+            }
+
+            public boolean isCombinedPrepareSupported() {
+                try {
+                    final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                    return getOperationsXA(peerIdentity.getConnection()).isCombinedPrepareSupported();
+                } catch (XAException e) {
+                    // the failure will be reported by whatever operation comes next
+                    return false;
+                }
+            }
+
+            public CompletionStage<Integer> beforeCompletionAndPrepareAsync() {
+                final CompletionStage<Integer> stage;
+                try {
+                    final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                    stage = getOperationsXA(peerIdentity.getConnection()).beforeCompletionAndPrepareAsync(xid, remainingTime, peerIdentity);
+                } catch (XAException | RuntimeException e) {
+                    rollbackOnlyXids.remove(xid);
+                    return failed(e);
+                }
+                return stage.whenComplete((r, t) -> rollbackOnlyXids.remove(xid));
+            }
+
+            public CompletionStage<Void> forgetAsync() {
+                final CompletionStage<Void> stage;
+                try {
+                    final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                    stage = getOperationsXA(peerIdentity.getConnection()).forgetAsync(xid, peerIdentity);
+                } catch (XAException | RuntimeException e) {
+                    rollbackOnlyXids.remove(xid);
+                    return failed(e);
+                }
+                return stage.whenComplete((r, t) -> rollbackOnlyXids.remove(xid));
+            }
+
+            public CompletionStage<Void> commitAsync(final boolean onePhase) {
+                final CompletionStage<Void> stage;
+                try {
+                    final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
+                    stage = getOperationsXA(peerIdentity.getConnection()).commitAsync(xid, onePhase, peerIdentity);
+                } catch (XAException | RuntimeException e) {
+                    rollbackOnlyXids.remove(xid);
+                    return failed(e);
+                }
+                return stage.whenComplete((r, t) -> rollbackOnlyXids.remove(xid));
+            }
         };
     }
 
+    static <T> CompletionStage<T> failed(Throwable cause) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
     @NotNull
     public Xid[] recover(final int flag, final String parentName) throws XAException {
         final ConnectionPeerIdentity peerIdentity = getPeerIdentityXA();
@@ -212,4 +339,26 @@ class RemotingRemoteTransactionPeer implements RemoteTransactionPeer {
             throw Log.log.failedToAcquireConnection(e);
         }
     }
+
+    /**
+     * The outcome of the authentication rule matching for one authentication context, along with the connected
+     * identity which was obtained with it, if any.
+     */
+    static final class Resolved {
+        final AuthenticationContext authenticationContext;
+        final SSLContext sslContext;
+        final AuthenticationConfiguration authenticationConfiguration;
+        final ConnectionPeerIdentity identity;
+
+        Resolved(final AuthenticationContext authenticationContext, final SSLContext sslContext, final AuthenticationConfiguration authenticationConfiguration, final ConnectionPeerIdentity identity) {
+            this.authenticationContext = authenticationContext;
+            this.sslContext = sslContext;
+            this.authenticationConfiguration = authenticationConfiguration;
+            this.identity = identity;
+        }
+
+        Resolved(final Resolved original, final ConnectionPeerIdentity identity) {
+            this(original.authenticationContext, original.sslContext, original.authenticationConfiguration, identity);
+        }
+    }
 }
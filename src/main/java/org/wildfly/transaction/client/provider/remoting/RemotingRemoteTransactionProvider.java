@@ -18,10 +18,19 @@
 
 package org.wildfly.transaction.client.provider.remoting;
 
+import static java.security.AccessController.doPrivileged;
+
 import java.net.URI;
+import java.security.PrivilegedAction;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
 import java.util.ServiceConfigurationError;
 import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.net.ssl.SSLContext;
 import javax.transaction.SystemException;
@@ -39,7 +48,15 @@ import org.wildfly.transaction.client.spi.RemoteTransactionProvider;
  */
 @MetaInfServices
 public final class RemotingRemoteTransactionProvider implements RemoteTransactionProvider {
+    private static final int PEER_CACHE_MAX_SIZE = Integer.parseInt(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.remoting.peer-cache.max-size", "256")));
+    private static final long PEER_CACHE_IDLE_NANOS = TimeUnit.SECONDS.toNanos(Long.parseLong(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.remoting.peer-cache.idle-timeout", "300"))));
+
     private final RemotingFallbackPeerProvider fallbackProvider;
+    private final ConcurrentHashMap<Key, CachedPeer> peers = new ConcurrentHashMap<>();
+    private final LongAdder peerCacheHits = new LongAdder();
+    private final LongAdder peerCacheMisses = new LongAdder();
+    private final AtomicLong nextIdleSweep = new AtomicLong(System.nanoTime());
+    private final ConcurrentHashMap<URI, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
 
     /**
      * Construct a new instance.
@@ -63,6 +80,160 @@ public final class RemotingRemoteTransactionProvider implements RemoteTransactio
     }
 
     public RemoteTransactionPeer getPeerHandle(final URI location, final SSLContext sslContext, final AuthenticationConfiguration authenticationConfiguration) throws SystemException {
-        return new RemotingRemoteTransactionPeer(location, sslContext, authenticationConfiguration, Endpoint.getCurrent(), fallbackProvider);
+        final Endpoint endpoint = Endpoint.getCurrent();
+        if (PEER_CACHE_MAX_SIZE <= 0) {
+            return new RemotingRemoteTransactionPeer(location, sslContext, authenticationConfiguration, endpoint, fallbackProvider, getCircuitBreaker(location));
+        }
+        final long now = System.nanoTime();
+        final long nextIdleSweep = this.nextIdleSweep.get();
+        // drop idle peers every so often, however small the cache is
+        if (now - nextIdleSweep >= 0 && this.nextIdleSweep.compareAndSet(nextIdleSweep, now + (PEER_CACHE_IDLE_NANOS >> 1))) {
+            evictIdle(now);
+        }
+        final Key key = new Key(location, sslContext, authenticationConfiguration, endpoint);
+        CachedPeer cached = peers.get(key);
+        if (cached != null) {
+            peerCacheHits.increment();
+        } else {
+            peerCacheMisses.increment();
+            final CachedPeer appearing = peers.putIfAbsent(key, cached = new CachedPeer(new RemotingRemoteTransactionPeer(location, sslContext, authenticationConfiguration, endpoint, fallbackProvider, getCircuitBreaker(location))));
+            if (appearing != null) {
+                cached = appearing;
+            } else if (peers.size() > PEER_CACHE_MAX_SIZE) {
+                evict(now);
+            }
+        }
+        cached.lastUsed = now;
+        return cached.peer;
+    }
+
+    /**
+     * Get the number of peer handle requests which were satisfied from the peer cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getPeerCacheHitCount() {
+        return peerCacheHits.sum();
+    }
+
+    /**
+     * Get the number of peer handle requests which required a new peer to be created.
+     *
+     * @return the number of cache misses
+     */
+    public long getPeerCacheMissCount() {
+        return peerCacheMisses.sum();
+    }
+
+    /**
+     * Get the number of peers currently cached.
+     *
+     * @return the number of cached peers
+     */
+    public int getPeerCacheSize() {
+        return peers.size();
+    }
+
+    /**
+     * Determine whether connection attempts to the given location are currently being refused because of repeated
+     * connection failures.
+     *
+     * @param location the peer location (must not be {@code null})
+     * @return {@code true} if the circuit for the location is open, {@code false} otherwise
+     */
+    public boolean isCircuitOpen(URI location) {
+        final CircuitBreaker circuitBreaker = circuitBreakers.get(location);
+        return circuitBreaker != null && circuitBreaker.getState() != CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * Get the number of locations whose circuit is currently open.
+     *
+     * @return the number of open circuits
+     */
+    public int getOpenCircuitCount() {
+        int count = 0;
+        for (CircuitBreaker circuitBreaker : circuitBreakers.values()) {
+            if (circuitBreaker.getState() != CircuitBreaker.State.CLOSED) {
+                count ++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of connection attempts which were refused because the circuit for their location was open.
+     *
+     * @return the number of refused connection attempts
+     */
+    public long getCircuitRejectedCount() {
+        long count = 0;
+        for (CircuitBreaker circuitBreaker : circuitBreakers.values()) {
+            count += circuitBreaker.getRejectedCount();
+        }
+        return count;
+    }
+
+    private CircuitBreaker getCircuitBreaker(final URI location) {
+        return circuitBreakers.computeIfAbsent(location, CircuitBreaker::new);
+    }
+
+    private void evictIdle(final long now) {
+        peers.values().removeIf(cached -> now - cached.lastUsed > PEER_CACHE_IDLE_NANOS);
+    }
+
+    private void evict(final long now) {
+        // first drop everything which has been idle for too long
+        evictIdle(now);
+        // then the least recently used entries until the cache is back within bounds
+        while (peers.size() > PEER_CACHE_MAX_SIZE) {
+            Map.Entry<Key, CachedPeer> oldest = null;
+            for (Map.Entry<Key, CachedPeer> entry : peers.entrySet()) {
+                if (oldest == null || entry.getValue().lastUsed - oldest.getValue().lastUsed < 0) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            peers.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    static final class CachedPeer {
+        final RemotingRemoteTransactionPeer peer;
+        volatile long lastUsed;
+
+        CachedPeer(final RemotingRemoteTransactionPeer peer) {
+            this.peer = peer;
+        }
+    }
+
+    static final class Key {
+        private final URI location;
+        private final SSLContext sslContext;
+        private final AuthenticationConfiguration authenticationConfiguration;
+        private final Endpoint endpoint;
+        private final int hashCode;
+
+        Key(final URI location, final SSLContext sslContext, final AuthenticationConfiguration authenticationConfiguration, final Endpoint endpoint) {
+            this.location = location;
+            this.sslContext = sslContext;
+            this.authenticationConfiguration = authenticationConfiguration;
+            this.endpoint = endpoint;
+            hashCode = ((Objects.hashCode(location) * 31 + Objects.hashCode(sslContext)) * 31 + Objects.hashCode(authenticationConfiguration)) * 31 + System.identityHashCode(endpoint);
+        }
+
+        public boolean equals(final Object obj) {
+            return obj instanceof Key && equals((Key) obj);
+        }
+
+        private boolean equals(final Key key) {
+            return hashCode == key.hashCode && endpoint == key.endpoint && Objects.equals(location, key.location) && Objects.equals(sslContext, key.sslContext) && Objects.equals(authenticationConfiguration, key.authenticationConfiguration);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
     }
 }
@@ -18,10 +18,21 @@
 
 package org.wildfly.transaction.client.provider.remoting;
 
+import static java.security.AccessController.doPrivileged;
 import static org.wildfly.transaction.client._private.Log.log;
 
 import java.io.IOException;
+import java.security.PrivilegedAction;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.transaction.Status;
 import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 
@@ -31,6 +42,8 @@ import org.jboss.remoting3._private.IntIndexHashMap;
 import org.jboss.remoting3._private.IntIndexMap;
 import org.wildfly.common.annotation.NotNull;
 import org.wildfly.transaction.client.LocalTransaction;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioWorker;
 
 /**
  * The per-connection transaction server.  This can be used to resolve a local transaction for a given transaction ID.
@@ -38,12 +51,27 @@ import org.wildfly.transaction.client.LocalTransaction;
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 public final class RemotingTransactionServer {
+    private static final int CLOSE_ROLLBACK_PARALLELISM = Integer.parseInt(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.remoting.close-rollback-parallelism", "4")));
+    private static final int REAP_INTERVAL = Integer.parseInt(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.remoting.reap-interval", "60")));
+    private static final int MAX_REAPED = 1024;
 
     private final RemotingTransactionService transactionService;
+    private final Connection connection;
     private final IntIndexMap<LocalTxn> txns = new IntIndexHashMap<LocalTxn>(LocalTxn::getId);
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicBoolean reapScheduled = new AtomicBoolean();
+    private volatile XnioExecutor.Key reapKey;
+    // the contexts which were reaped while unfinished, so that a late commit is not taken for a success; protected by itself
+    private final Map<Integer, Boolean> reaped = new LinkedHashMap<Integer, Boolean>() {
+        protected boolean removeEldestEntry(final Map.Entry<Integer, Boolean> eldest) {
+            return size() > MAX_REAPED;
+        }
+    };
+    private volatile boolean closed;
 
     RemotingTransactionServer(final RemotingTransactionService transactionService, final Connection connection) {
         this.transactionService = transactionService;
+        this.connection = connection;
         connection.addCloseHandler(this::handleClosed);
     }
 
@@ -62,17 +90,25 @@ public final class RemotingTransactionServer {
         if (txn != null) {
             return txn.getTransaction();
         }
+        if (wasReaped(id)) {
+            // the client still uses a context which was rolled back; don't start a new transaction under it
+            throw log.noTransactionForId(id);
+        }
+        transactionService.acquireTransaction(requests);
         boolean ok = false;
-        LocalTransaction transaction = transactionService.getTransactionContext().beginTransaction(timeout, true);
+        LocalTransaction transaction = null;
         try {
+            transaction = transactionService.getTransactionContext().beginTransaction(timeout, true);
             final LocalTxn appearing = txns.putIfAbsent(new LocalTxn(id, transaction));
             if (appearing != null) {
                 return appearing.getTransaction();
             }
             ok = true;
+            scheduleReap();
             return transaction;
         } finally {
             if (! ok) {
+                transactionService.releaseTransaction();
                 safeRollback(transaction);
             }
         }
@@ -84,16 +120,139 @@ public final class RemotingTransactionServer {
     }
 
     public LocalTransaction removeTransaction(int id) {
-        LocalTxn txn = txns.removeKey(id);
+        LocalTxn txn = removeTxn(id);
         return txn == null ? null : txn.getTransaction();
     }
 
+    LocalTxn removeTxn(int id) {
+        final LocalTxn txn = txns.removeKey(id);
+        if (txn != null) {
+            transactionService.releaseTransaction();
+        }
+        return txn;
+    }
+
+    /**
+     * Determine whether the context with the given ID was rolled back by the reaper, forgetting it if so.
+     *
+     * @param id the context ID
+     * @return {@code true} if the context was reaped before it finished, {@code false} otherwise
+     */
+    boolean removeReaped(int id) {
+        synchronized (reaped) {
+            return reaped.remove(Integer.valueOf(id)) != null;
+        }
+    }
+
+    private boolean wasReaped(int id) {
+        synchronized (reaped) {
+            return reaped.containsKey(Integer.valueOf(id));
+        }
+    }
+
+    /**
+     * Schedule a sweep of the transaction contexts, unless one is already scheduled.
+     */
+    private void scheduleReap() {
+        if (REAP_INTERVAL <= 0 || closed || ! reapScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        final XnioWorker worker = connection.getEndpoint().getXnioWorker();
+        // the sweep itself may roll back transactions, so it is not run on the I/O thread
+        reapKey = worker.getIoThread().executeAfter(() -> {
+            try {
+                worker.execute(this::reap);
+            } catch (RejectedExecutionException e) {
+                reapScheduled.set(false);
+            }
+        }, REAP_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Discard the contexts of transactions which have completed or timed out on this side without the client having
+     * committed or rolled them back, which happens if the client leaks the transaction.  Timed out transactions are
+     * rolled back.
+     */
+    void reap() {
+        reapScheduled.set(false);
+        boolean remaining = false;
+        for (LocalTxn txn : txns) {
+            final LocalTransaction transaction = txn.getTransaction();
+            int status;
+            try {
+                status = transaction.getStatus();
+            } catch (SystemException e) {
+                status = Status.STATUS_UNKNOWN;
+            }
+            final boolean finished = status == Status.STATUS_COMMITTED || status == Status.STATUS_ROLLEDBACK || status == Status.STATUS_NO_TRANSACTION;
+            if (! finished && ! txn.isExpired()) {
+                remaining = true;
+                continue;
+            }
+            if (txns.get(txn.getId()) != txn || txns.removeKey(txn.getId()) == null) {
+                continue;
+            }
+            transactionService.releaseTransaction();
+            transactionService.transactionReaped();
+            if (! finished) {
+                synchronized (reaped) {
+                    reaped.put(Integer.valueOf(txn.getId()), Boolean.TRUE);
+                }
+                safeRollback(transaction);
+            }
+        }
+        if (remaining) {
+            scheduleReap();
+        }
+    }
+
     void handleClosed(Connection connection, IOException ignored) {
+        closed = true;
+        final XnioExecutor.Key reapKey = this.reapKey;
+        if (reapKey != null) {
+            reapKey.remove();
+        }
+        final ConcurrentLinkedQueue<LocalTxn> queue = new ConcurrentLinkedQueue<>();
         for (LocalTxn txn : txns) {
-            safeRollback(txn.getTransaction());
+            if (txns.removeKey(txn.getId()) != null) {
+                transactionService.releaseTransaction();
+                queue.add(txn);
+            }
+        }
+        if (queue.isEmpty()) {
+            return;
+        }
+        // roll back in the background so that the close path is not held up by the resource managers
+        transactionService.addPendingCloseRollbacks(queue.size());
+        final Runnable task = () -> {
+            LocalTxn txn;
+            while ((txn = queue.poll()) != null) {
+                try {
+                    safeRollback(txn.getTransaction());
+                } finally {
+                    transactionService.addPendingCloseRollbacks(-1);
+                }
+            }
+        };
+        final Executor executor = transactionService.getCloseExecutor(connection);
+        final int parallelism = Math.max(1, Math.min(CLOSE_ROLLBACK_PARALLELISM, queue.size()));
+        for (int i = 0; i < parallelism; i ++) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
         }
     }
 
+    boolean acquireRequest(final boolean completion) {
+        return transactionService.acquireRequest(requests, completion);
+    }
+
+    void releaseRequest() {
+        transactionService.releaseRequest(requests);
+    }
+
     static void safeRollback(final Transaction transaction) {
         if (transaction != null) try {
             transaction.rollback();
@@ -126,10 +285,22 @@ public final class RemotingTransactionServer {
     static final class LocalTxn {
         private final LocalTransaction transaction;
         private final int id;
+        private final long deadline;
 
         LocalTxn(final int id, final LocalTransaction transaction) {
             this.id = id;
             this.transaction = transaction;
+            final int timeout = transaction.getTransactionTimeout();
+            deadline = timeout > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout) : 0;
+        }
+
+        /**
+         * Determine whether the timeout of the transaction has passed.  A transaction without a timeout never expires.
+         *
+         * @return {@code true} if the transaction timed out, {@code false} otherwise
+         */
+        boolean isExpired() {
+            return deadline != 0 && System.nanoTime() - deadline > 0;
         }
 
         LocalTransaction getTransaction() {
@@ -18,6 +18,13 @@
 
 package org.wildfly.transaction.client.provider.remoting;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.transaction.SystemException;
+
 import org.jboss.remoting3.Attachments;
 import org.jboss.remoting3.Channel;
 import org.jboss.remoting3.Connection;
@@ -25,6 +32,7 @@ import org.jboss.remoting3.Endpoint;
 import org.jboss.remoting3.OpenListener;
 import org.jboss.remoting3.Registration;
 import org.jboss.remoting3.ServiceRegistrationException;
+import org.wildfly.common.Assert;
 import org.wildfly.transaction.client.LocalTransactionContext;
 import org.wildfly.transaction.client._private.Log;
 import org.xnio.OptionMap;
@@ -37,11 +45,24 @@ import org.xnio.OptionMap;
 public final class RemotingTransactionService {
     private final Endpoint endpoint;
     private final LocalTransactionContext transactionContext;
+    private final OrderedExecutor executor;
+    private final int maxRequests;
+    private final int maxConnectionRequests;
+    private final int maxTransactions;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger transactions = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger pendingCloseRollbacks = new AtomicInteger();
+    private final LongAdder reaped = new LongAdder();
     private static final Attachments.Key<RemotingTransactionServer> KEY = new Attachments.Key<>(RemotingTransactionServer.class);
 
-    RemotingTransactionService(final Endpoint endpoint, final LocalTransactionContext transactionContext) {
+    RemotingTransactionService(final Endpoint endpoint, final LocalTransactionContext transactionContext, final Executor executor, final int maxRequests, final int maxConnectionRequests, final int maxTransactions) {
         this.endpoint = endpoint;
         this.transactionContext = transactionContext;
+        this.executor = executor == null ? null : new OrderedExecutor(executor);
+        this.maxRequests = maxRequests;
+        this.maxConnectionRequests = maxConnectionRequests;
+        this.maxTransactions = maxTransactions;
     }
 
     public Registration register() throws ServiceRegistrationException {
@@ -81,6 +102,140 @@ public final class RemotingTransactionService {
         return transactionContext;
     }
 
+    /**
+     * Get the number of inbound requests which are waiting to be handled.  This is always zero if requests are
+     * handled inline.
+     *
+     * @return the number of queued requests
+     */
+    public int getQueuedRequestCount() {
+        final OrderedExecutor executor = this.executor;
+        return executor == null ? 0 : executor.getQueuedCount();
+    }
+
+    /**
+     * Get the number of inbound requests which are currently queued or being handled, over all connections.
+     *
+     * @return the number of requests in flight
+     */
+    public int getInFlightRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of transactions which were begun on behalf of remote clients and are not yet complete.
+     *
+     * @return the number of open transactions
+     */
+    public int getOpenTransactionCount() {
+        return transactions.get();
+    }
+
+    /**
+     * Get the number of requests and transaction begins which were rejected because a limit was reached.
+     *
+     * @return the number of rejections
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Get the number of transactions which were discarded because they completed or timed out without the client
+     * ever committing or rolling them back.
+     *
+     * @return the number of reaped transactions
+     */
+    public long getReapedTransactionCount() {
+        return reaped.sum();
+    }
+
+    void transactionReaped() {
+        reaped.increment();
+    }
+
+    /**
+     * Get the number of transactions of closed connections which are still waiting to be rolled back.
+     *
+     * @return the number of pending rollbacks
+     */
+    public int getPendingCloseRollbackCount() {
+        return pendingCloseRollbacks.get();
+    }
+
+    void addPendingCloseRollbacks(final int delta) {
+        pendingCloseRollbacks.addAndGet(delta);
+    }
+
+    /**
+     * Get the executor for the cleanup of a closed connection: the request executor if one was configured, otherwise
+     * the worker of the connection's endpoint.
+     *
+     * @param connection the closed connection
+     * @return the executor (not {@code null})
+     */
+    Executor getCloseExecutor(final Connection connection) {
+        final OrderedExecutor executor = this.executor;
+        return executor == null ? connection.getEndpoint().getXnioWorker() : executor.getDelegate();
+    }
+
+    /**
+     * Account for a new inbound request.  Requests which complete existing work are always admitted, so that
+     * existing transactions can drain while new work is being rejected.
+     *
+     * @param connectionRequests the request count of the connection
+     * @param completion {@code true} if the request completes existing work, {@code false} if it is new work
+     * @return {@code true} if the request was admitted, or {@code false} if it must be rejected
+     */
+    boolean acquireRequest(final AtomicInteger connectionRequests, final boolean completion) {
+        final int global = requests.incrementAndGet();
+        final int local = connectionRequests.incrementAndGet();
+        if (completion || ! isOverloaded(global, local)) {
+            return true;
+        }
+        releaseRequest(connectionRequests);
+        rejected.increment();
+        return false;
+    }
+
+    void releaseRequest(final AtomicInteger connectionRequests) {
+        connectionRequests.decrementAndGet();
+        requests.decrementAndGet();
+    }
+
+    /**
+     * Account for a new transaction begun on behalf of a remote client.
+     *
+     * @param connectionRequests the request count of the connection
+     * @throws SystemException if the transaction may not be begun
+     */
+    void acquireTransaction(final AtomicInteger connectionRequests) throws SystemException {
+        final int count = transactions.incrementAndGet();
+        if ((maxTransactions <= 0 || count <= maxTransactions) && ! isOverloaded(requests.get(), connectionRequests.get())) {
+            return;
+        }
+        transactions.decrementAndGet();
+        rejected.increment();
+        throw Log.log.serverOverloaded();
+    }
+
+    void releaseTransaction() {
+        transactions.decrementAndGet();
+    }
+
+    private boolean isOverloaded(final int global, final int local) {
+        return maxRequests > 0 && global > maxRequests || maxConnectionRequests > 0 && local > maxConnectionRequests;
+    }
+
+    /**
+     * Get the executor for inbound requests.
+     *
+     * @return the executor, or {@code null} if requests are handled inline on the receiving thread
+     */
+    OrderedExecutor getExecutor() {
+        return executor;
+    }
+
     public static Builder builder() {
         return new Builder();
     }
@@ -88,6 +243,11 @@ public final class RemotingTransactionService {
     public static final class Builder {
         private Endpoint endpoint;
         private LocalTransactionContext transactionContext;
+        private Executor executor;
+        private boolean virtualThreads;
+        private int maxRequests;
+        private int maxConnectionRequests;
+        private int maxTransactions;
 
         Builder() {
         }
@@ -102,12 +262,87 @@ public final class RemotingTransactionService {
             return this;
         }
 
+        /**
+         * Set the executor used to handle inbound requests, for example a bounded thread pool.  Requests for the same
+         * transaction are always handled in the order they were received, while requests for different transactions
+         * may be handled in parallel.  A request which the executor rejects is handled by the receiving thread.  If
+         * no executor is set, requests are handled inline on the receiving thread.
+         *
+         * @param executor the executor, or {@code null} to handle requests inline
+         * @return this builder
+         */
+        public Builder setExecutor(final Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Set whether inbound requests should each be handled on a new virtual thread.  This requires a Java runtime
+         * with virtual thread support, and takes precedence over any {@linkplain #setExecutor(Executor) executor}.
+         *
+         * @param virtualThreads {@code true} to handle requests on virtual threads, {@code false} otherwise
+         * @return this builder
+         */
+        public Builder setVirtualThreads(final boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of inbound requests which may be in flight over all connections before new work is
+         * rejected.  Requests which complete existing transactions are always accepted.
+         *
+         * @param maxRequests the maximum number of requests, or 0 for no limit
+         * @return this builder
+         */
+        public Builder setMaxRequests(final int maxRequests) {
+            Assert.checkMinimumParameter("maxRequests", 0, maxRequests);
+            this.maxRequests = maxRequests;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of inbound requests which may be in flight on one connection before new work from
+         * that connection is rejected.  Requests which complete existing transactions are always accepted.
+         *
+         * @param maxConnectionRequests the maximum number of requests per connection, or 0 for no limit
+         * @return this builder
+         */
+        public Builder setMaxConnectionRequests(final int maxConnectionRequests) {
+            Assert.checkMinimumParameter("maxConnectionRequests", 0, maxConnectionRequests);
+            this.maxConnectionRequests = maxConnectionRequests;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of transactions which may be open on behalf of remote clients before further
+         * transaction begins are rejected.
+         *
+         * @param maxTransactions the maximum number of open transactions, or 0 for no limit
+         * @return this builder
+         */
+        public Builder setMaxTransactions(final int maxTransactions) {
+            Assert.checkMinimumParameter("maxTransactions", 0, maxTransactions);
+            this.maxTransactions = maxTransactions;
+            return this;
+        }
+
         public RemotingTransactionService build() {
             Endpoint endpoint = this.endpoint;
             if (endpoint == null) endpoint = Endpoint.getCurrent();
             LocalTransactionContext transactionContext = this.transactionContext;
             if (transactionContext == null) transactionContext = LocalTransactionContext.getCurrent();
-            return new RemotingTransactionService(endpoint, transactionContext);
+            Executor executor = this.executor;
+            if (virtualThreads) executor = newVirtualThreadExecutor();
+            return new RemotingTransactionService(endpoint, transactionContext, executor, maxRequests, maxConnectionRequests, maxTransactions);
+        }
+
+        private static Executor newVirtualThreadExecutor() {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw Log.log.virtualThreadsNotSupported(e);
+            }
         }
     }
 }
@@ -18,11 +18,29 @@
 
 package org.wildfly.transaction.client.provider.remoting;
 
+import static java.security.AccessController.doPrivileged;
+import static org.wildfly.transaction.client._private.Stages.await;
 import static org.xnio.IoUtils.safeClose;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ClosedChannelException;
+import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import javax.transaction.SystemException;
 import javax.transaction.xa.XAException;
@@ -37,7 +55,7 @@ import org.jboss.remoting3.MessageInputStream;
 import org.jboss.remoting3.MessageOutputStream;
 import org.jboss.remoting3._private.IntIndexHashMap;
 import org.jboss.remoting3._private.IntIndexMap;
-import org.jboss.remoting3.util.BlockingInvocation;
+import org.jboss.remoting3.util.Invocation;
 import org.jboss.remoting3.util.InvocationTracker;
 import org.jboss.remoting3.util.StreamUtils;
 import org.wildfly.common.annotation.NotNull;
@@ -45,9 +63,11 @@ import org.wildfly.common.rpc.RemoteExceptionCause;
 import org.wildfly.transaction.client.SimpleXid;
 import org.wildfly.transaction.client._private.Log;
 import org.wildfly.transaction.client.spi.SimpleTransactionControl;
-import org.xnio.FinishedIoFuture;
+import org.xnio.FutureResult;
 import org.xnio.IoFuture;
 import org.xnio.OptionMap;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioWorker;
 
 /**
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
@@ -57,6 +77,37 @@ final class TransactionClientChannel implements RemotingOperations {
     private final InvocationTracker invocationTracker;
     private final IntIndexMap<RemotingRemoteTransactionHandle> peerTransactionMap = new IntIndexHashMap<RemotingRemoteTransactionHandle>(RemotingRemoteTransactionHandle::getId);
     private final Channel.Receiver receiver = new ReceiverImpl();
+    // established once by the capability exchange, before the channel is handed out
+    private volatile int version = Protocol.VERSION_MIN;
+    private volatile int features;
+    private final Object batchLock = new Object();
+    // protected by {@code batchLock}
+    private BatchInvocation openBatch;
+    // the XIDs which are referred to by handle, if the peer supports it
+    private final ConcurrentHashMap<SimpleXid, XidHandle> xidHandles = new ConcurrentHashMap<>();
+    private final AtomicInteger nextXidHandle = new AtomicInteger();
+    // the number of timed out invocations whose IDs are held back
+    private final AtomicInteger quarantined = new AtomicInteger();
+
+    /**
+     * The time, in milliseconds, that the ID of a timed out invocation is kept out of use, and the number of IDs which
+     * may be held back at once; the tracker has only 65536 IDs to hand out.
+     */
+    private static final long QUARANTINE_MILLIS = 60_000L;
+    private static final int MAX_QUARANTINED = 4096;
+
+    /**
+     * The time, in microseconds, that single-XID requests are held back so that they can be sent together with
+     * concurrent requests in one frame; zero sends every request immediately.
+     */
+    private static final long BATCH_WINDOW = Long.parseLong(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.remoting.batch-window", "0")));
+    /**
+     * The time, in seconds, to wait for the peer to answer a request before giving up on it; zero waits for as long as
+     * the connection stays open.  If set, requests which carry the remaining time of their transaction wait at most that
+     * long as well.
+     */
+    static final int RESPONSE_TIMEOUT = Integer.parseInt(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.remoting.response-timeout", "0")));
+    private static final int BATCH_MAX_SIZE = Integer.parseInt(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.remoting.batch-max-size", "64")));
 
     private static final ClientServiceHandle<TransactionClientChannel> CLIENT_SERVICE_HANDLE = new ClientServiceHandle<>("txn", TransactionClientChannel::construct);
 
@@ -66,10 +117,41 @@ final class TransactionClientChannel implements RemotingOperations {
     }
 
     private static IoFuture<TransactionClientChannel> construct(final Channel channel) {
-        // future protocol versions might have to negotiate a version or capabilities before proceeding
         final TransactionClientChannel clientChannel = new TransactionClientChannel(channel);
         channel.receiveMessage(clientChannel.getReceiver());
-        return new FinishedIoFuture<>(clientChannel);
+        // negotiate the protocol version and features before the channel is used
+        final FutureResult<TransactionClientChannel> futureResult = new FutureResult<>();
+        final InvocationTracker invocationTracker = clientChannel.getInvocationTracker();
+        final CapabilityInvocation invocation = invocationTracker.addInvocation(index -> new CapabilityInvocation(index, clientChannel, futureResult));
+        try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
+            os.writeShort(invocation.getIndex());
+            os.writeByte(Protocol.M_CAPABILITY);
+            Protocol.writeParam(Protocol.P_CAP_VERSION, os, Protocol.VERSION_MAX, Protocol.UNSIGNED);
+            Protocol.writeParam(Protocol.P_CAP_FEATURES, os, Protocol.SUPPORTED_FEATURES, Protocol.UNSIGNED);
+        } catch (IOException e) {
+            invocationTracker.remove(invocation);
+            futureResult.setException(e);
+        }
+        return futureResult.getIoFuture();
+    }
+
+    /**
+     * Get the protocol version agreed with the peer.
+     *
+     * @return the protocol version
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Determine whether the peer agreed to use the given feature on this channel.
+     *
+     * @param feature the {@code Protocol} feature bit
+     * @return {@code true} if the feature may be used, {@code false} otherwise
+     */
+    boolean supports(final int feature) {
+        return (features & feature) == feature;
     }
 
     @NotNull
@@ -85,417 +167,639 @@ final class TransactionClientChannel implements RemotingOperations {
     }
 
     public void rollback(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
-        // write request
-        try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
-            os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_ROLLBACK);
-            Protocol.writeParam(Protocol.P_XID, os, xid);
-            final int peerIdentityId = peerIdentity.getId();
-            if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
-        } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
+        await(rollbackAsync(xid, peerIdentity));
+    }
+
+    public void setRollbackOnly(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        await(setRollbackOnlyAsync(xid, peerIdentity));
+    }
+
+    public void beforeCompletion(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        await(beforeCompletionAsync(xid, peerIdentity));
+    }
+
+    public int prepare(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        return await(prepareAsync(xid, peerIdentity)).intValue();
+    }
+
+    public void forget(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        await(forgetAsync(xid, peerIdentity));
+    }
+
+    public void commit(final Xid xid, final boolean onePhase, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        await(commitAsync(xid, onePhase, peerIdentity));
+    }
+
+    @NotNull
+    public Xid[] recover(final int flag, final String parentName, final ConnectionPeerIdentity peerIdentity) throws XAException {
+        return await(recoverAsync(flag, parentName, peerIdentity));
+    }
+
+    public void recover(final String parentName, final ConnectionPeerIdentity peerIdentity, final Consumer<Xid> consumer) throws XAException {
+        if (! supports(Protocol.F_RECOVER_PAGED)) {
+            RemotingOperations.super.recover(parentName, peerIdentity, consumer);
+            return;
         }
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
-                if (is.readUnsignedByte() != Protocol.M_RESP_XA_ROLLBACK) {
-                    throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
+        int flag = XAResource.TMSTARTRSCAN;
+        RecoveryPage page = null;
+        do {
+            page = await(recoverPageAsync(flag, page == null ? -1 : page.scanId, parentName, peerIdentity));
+            try {
+                for (Xid xid : page.xids) {
+                    consumer.accept(xid);
                 }
-                int id = is.read();
-                if (id == Protocol.P_XA_ERROR) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    int error = is.readInt();
-                    final XAException xa = Log.log.peerXaException(error);
-                    xa.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(Log.log.peerXaException(error));
-                        throw ex;
-                    } else {
-                        throw xa;
-                    }
-                } else if (id == Protocol.P_SEC_EXC) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    final SecurityException sx = Log.log.peerSecurityException();
-                    sx.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(Log.log.peerSecurityException());
-                        throw ex;
-                    } else {
-                        throw sx;
-                    }
-                } else if (id != -1) {
-                    throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
+            } catch (Throwable t) {
+                if (page.more) try {
+                    // release the scan on the peer
+                    await(recoverPageAsync(XAResource.TMENDRSCAN, page.scanId, parentName, peerIdentity));
+                } catch (Throwable t1) {
+                    t.addSuppressed(t1);
                 }
-            } catch (IOException e) {
-                throw Log.log.responseFailedXa(e, XAException.XAER_RMERR);
+                throw t;
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw Log.log.interruptedXA(XAException.XAER_RMERR);
-        } catch (IOException e) {
-            // failed to close the response, but we don't care too much
-            Log.log.inboundException(e);
+            flag = XAResource.TMNOFLAGS;
+        } while (page.more);
+    }
+
+    public CompletionStage<Void> rollbackAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity) {
+        return sendXaRequest(Protocol.M_XA_ROLLBACK, Protocol.M_RESP_XA_ROLLBACK, XAException.XAER_RMERR, xid, false, -1, peerIdentity).thenApply(TransactionClientChannel::toVoid);
+    }
+
+    public CompletionStage<Void> setRollbackOnlyAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity) {
+        return sendXaRequest(Protocol.M_XA_RB_ONLY, Protocol.M_RESP_XA_RB_ONLY, XAException.XAER_RMERR, xid, false, -1, peerIdentity).thenApply(TransactionClientChannel::toVoid);
+    }
+
+    public CompletionStage<Void> beforeCompletionAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity) {
+        return beforeCompletionAsync(xid, -1, peerIdentity);
+    }
+
+    public CompletionStage<Void> beforeCompletionAsync(final Xid xid, final int remainingTime, final ConnectionPeerIdentity peerIdentity) {
+        return sendXaRequest(Protocol.M_XA_BEFORE, Protocol.M_RESP_XA_BEFORE, XAException.XAER_RMERR, xid, false, remainingTime, peerIdentity).thenApply(TransactionClientChannel::toVoid);
+    }
+
+    public CompletionStage<Integer> prepareAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity) {
+        return prepareAsync(xid, -1, peerIdentity);
+    }
+
+    public CompletionStage<Integer> prepareAsync(final Xid xid, final int remainingTime, final ConnectionPeerIdentity peerIdentity) {
+        return sendXaRequest(Protocol.M_XA_PREPARE, Protocol.M_RESP_XA_PREPARE, XAException.XAER_RMERR, xid, false, remainingTime, peerIdentity);
+    }
+
+    public boolean isCombinedPrepareSupported() {
+        return supports(Protocol.F_BEFORE_PREPARE);
+    }
+
+    public CompletionStage<Integer> beforeCompletionAndPrepareAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity) {
+        return beforeCompletionAndPrepareAsync(xid, -1, peerIdentity);
+    }
+
+    public CompletionStage<Integer> beforeCompletionAndPrepareAsync(final Xid xid, final int remainingTime, final ConnectionPeerIdentity peerIdentity) {
+        if (! isCombinedPrepareSupported()) {
+            return beforeCompletionAsync(xid, remainingTime, peerIdentity).thenCompose(ignored -> prepareAsync(xid, remainingTime, peerIdentity));
         }
+        return sendXaRequest(Protocol.M_XA_BEFORE_PREPARE, Protocol.M_RESP_XA_BEFORE_PREPARE, XAException.XAER_RMERR, xid, false, remainingTime, peerIdentity);
     }
 
-    public void setRollbackOnly(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        // write rollback-only request
+    public CompletionStage<Void> forgetAsync(final Xid xid, final ConnectionPeerIdentity peerIdentity) {
+        return sendXaRequest(Protocol.M_XA_FORGET, Protocol.M_RESP_XA_FORGET, XAException.XAER_RMERR, xid, false, -1, peerIdentity).thenApply(TransactionClientChannel::toVoid);
+    }
+
+    public CompletionStage<Void> commitAsync(final Xid xid, final boolean onePhase, final ConnectionPeerIdentity peerIdentity) {
+        // a commit response which cannot be read leaves the outcome unknown, so report it as a resource manager failure
+        return sendXaRequest(Protocol.M_XA_COMMIT, Protocol.M_RESP_XA_COMMIT, XAException.XAER_RMFAIL, xid, onePhase, -1, peerIdentity).thenApply(TransactionClientChannel::toVoid);
+    }
+
+    public CompletionStage<Xid[]> recoverAsync(final int flag, final String parentName, final ConnectionPeerIdentity peerIdentity) {
+        if (flag != XAResource.TMSTARTRSCAN) {
+            return CompletableFuture.completedFuture(SimpleXid.NO_XIDS);
+        }
+        if (supports(Protocol.F_RECOVER_PAGED)) {
+            return collectRecoveryPages(XAResource.TMSTARTRSCAN, -1, parentName, peerIdentity, new ArrayList<>());
+        }
+        return recoverPageAsync(-1, -1, parentName, peerIdentity).thenApply(page -> page.xids);
+    }
+
+    private CompletionStage<Xid[]> collectRecoveryPages(final int flag, final int scanId, final String parentName, final ConnectionPeerIdentity peerIdentity, final ArrayList<Xid> xids) {
+        return recoverPageAsync(flag, scanId, parentName, peerIdentity).thenCompose(page -> {
+            Collections.addAll(xids, page.xids);
+            return page.more ? collectRecoveryPages(XAResource.TMNOFLAGS, page.scanId, parentName, peerIdentity, xids) : CompletableFuture.completedFuture(xids.toArray(SimpleXid.NO_XIDS));
+        });
+    }
+
+    /**
+     * Request one page of a recovery scan.
+     *
+     * @param flag the scan flags, or -1 to request the complete list from a peer which does not support paging
+     * @param scanId the scan ID the peer returned with the previous page, or -1 to start a scan
+     * @param parentName the parent node name
+     * @param peerIdentity the peer identity to use
+     * @return the completion stage of the request
+     */
+    private CompletionStage<RecoveryPage> recoverPageAsync(final int flag, final int scanId, final String parentName, final ConnectionPeerIdentity peerIdentity) {
         final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
+        final RecoverInvocation invocation = invocationTracker.addInvocation(RecoverInvocation::new);
+        scheduleTimeout(invocation, invocation.future, RESPONSE_TIMEOUT, XAException.XAER_RMFAIL);
         // write request
         try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
             os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_RB_ONLY);
-            Protocol.writeParam(Protocol.P_XID, os, xid);
+            os.writeByte(Protocol.M_XA_RECOVER);
             final int peerIdentityId = peerIdentity.getId();
             if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
+            Protocol.writeParam(Protocol.P_PARENT_NAME, os, parentName);
+            if (flag != -1) Protocol.writeParam(Protocol.P_RECOVER_FLAGS, os, flag, Protocol.UNSIGNED);
+            if (scanId != -1) Protocol.writeParam(Protocol.P_RECOVER_SCAN, os, scanId, Protocol.UNSIGNED);
         } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
+            invocationTracker.remove(invocation);
+            invocation.future.completeExceptionally(Log.log.failedToSendXA(e, XAException.XAER_RMERR));
         }
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
-                if (is.readUnsignedByte() != Protocol.M_RESP_XA_RB_ONLY) {
-                    throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
-                }
-                int id = is.read();
-                if (id == Protocol.P_XA_ERROR) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    int error = is.readInt();
-                    final XAException xa = Log.log.peerXaException(error);
-                    xa.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(xa);
-                        throw ex;
-                    } else {
-                        throw xa;
-                    }
-                } else if (id == Protocol.P_SEC_EXC) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    final SecurityException sx = Log.log.peerSecurityException();
-                    sx.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(sx);
-                        throw ex;
-                    } else {
-                        throw sx;
-                    }
-                } else if (id != -1) {
-                    throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
+        return invocation.future;
+    }
+
+    private CompletionStage<Integer> sendXaRequest(final int msgId, final int respId, final int ioErrorCode, final Xid xid, final boolean onePhase, final int remainingTime, final ConnectionPeerIdentity peerIdentity) {
+        // only send the remaining time to peers which understand it
+        final int sentRemainingTime = supports(Protocol.F_DEADLINE) ? remainingTime : -1;
+        final InvocationTracker invocationTracker = getInvocationTracker();
+        final XaInvocation invocation = invocationTracker.addInvocation(index -> new XaInvocation(index, respId, ioErrorCode));
+        // the outcome of a one-phase commit which is never answered is unknown; anything else can be retried or rolled back
+        final int timeoutErrorCode = onePhase ? XAException.XA_HEURHAZ : XAException.XAER_RMFAIL;
+        // without a configured response timeout, wait indefinitely as before, whatever the remaining time
+        final int timeout = remainingTime < 0 || RESPONSE_TIMEOUT == 0 ? RESPONSE_TIMEOUT : Math.min(RESPONSE_TIMEOUT, Math.max(1, remainingTime));
+        scheduleTimeout(invocation, invocation.future, timeout, timeoutErrorCode);
+        final boolean lastRequest = msgId == Protocol.M_XA_COMMIT || msgId == Protocol.M_XA_ROLLBACK || msgId == Protocol.M_XA_FORGET;
+        final XidHandle xidHandle = getXidHandle(xid, lastRequest);
+        if (xidHandle != null && ! lastRequest) {
+            invocation.future.whenComplete((result, problem) -> xidRequestComplete(xidHandle, msgId, result, problem));
+        }
+        // encode the request first, so that it is written to the channel in one piece
+        try (MessageBuffer buffer = MessageBuffer.get()) {
+            writeXaRequest(buffer, invocation.getIndex(), msgId, xid, xidHandle, onePhase, sentRemainingTime, peerIdentity);
+            if (BATCH_WINDOW > 0 && supports(Protocol.F_BATCH)) {
+                addToBatch(invocation, buffer.toByteArray());
+            } else {
+                try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
+                    buffer.writeTo(os);
                 }
-            } catch (IOException e) {
-                throw Log.log.responseFailedXa(e, XAException.XAER_RMERR);
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw Log.log.interruptedXA(XAException.XAER_RMERR);
         } catch (IOException e) {
-            // failed to close the response, but we don't care too much
-            Log.log.inboundException(e);
+            invocationTracker.remove(invocation);
+            invocation.future.completeExceptionally(Log.log.failedToSendXA(e, XAException.XAER_RMERR));
         }
+        return invocation.future;
     }
 
-    public void beforeCompletion(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
-        // write request
-        try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
-            os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_BEFORE);
-            Protocol.writeParam(Protocol.P_XID, os, xid);
-            final int peerIdentityId = peerIdentity.getId();
-            if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
-        } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
+    /**
+     * Get the handle by which to refer to an XID.  A new handle is registered by the first request which carries it,
+     * and the XID is sent along with the handle until such a request has been answered.  Handles are never reused on
+     * a channel, so a late request can never be mistaken for one of another transaction.  The last request for an XID
+     * always carries the XID itself, since the peer may have refused to register the handle; the peer releases the
+     * handle by the XID.
+     *
+     * @param xid the XID
+     * @param release {@code true} if the request is the last one for the XID
+     * @return the handle, or {@code null} to send the XID only
+     */
+    private XidHandle getXidHandle(final Xid xid, final boolean release) {
+        if (! supports(Protocol.F_XID_HANDLE)) {
+            return null;
         }
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
-                if (is.readUnsignedByte() != Protocol.M_RESP_XA_BEFORE) {
-                    throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
-                }
-                int id = is.read();
-                if (id == Protocol.P_XA_ERROR) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    int error = is.readInt();
-                    final XAException xa = Log.log.peerXaException(error);
-                    xa.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(xa);
-                        throw ex;
-                    } else {
-                        throw xa;
-                    }
-                } else if (id == Protocol.P_SEC_EXC) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    final SecurityException sx = Log.log.peerSecurityException();
-                    sx.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(sx);
-                        throw ex;
-                    } else {
-                        throw sx;
-                    }
-                } else if (id != -1) {
-                    throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                }
+        final SimpleXid key = SimpleXid.of(xid);
+        if (release) {
+            xidHandles.remove(key);
+            return null;
+        }
+        XidHandle xidHandle = xidHandles.get(key);
+        if (xidHandle == null) {
+            // XIDs beyond the limit are always sent in full
+            if (xidHandles.size() >= Protocol.MAX_XID_HANDLES) {
+                return null;
+            }
+            final int handle = nextXidHandle.getAndIncrement() & 0x7fffffff;
+            final XidHandle appearing = xidHandles.putIfAbsent(key, xidHandle = new XidHandle(key, handle));
+            if (appearing != null) {
+                return appearing;
+            }
+        }
+        return xidHandle;
+    }
+
+    private void xidRequestComplete(final XidHandle xidHandle, final int msgId, final Integer result, final Throwable problem) {
+        if (problem == null && ! (result != null && result.intValue() == XAResource.XA_RDONLY && (msgId == Protocol.M_XA_PREPARE || msgId == Protocol.M_XA_BEFORE_PREPARE))) {
+            xidHandle.confirmed = true;
+        } else {
+            // the transaction is over, or the peer may not have registered the handle; either way do not use it again
+            xidHandles.remove(xidHandle.xid, xidHandle);
+        }
+    }
+
+    /**
+     * Fail the given request if it is not answered in time, and release its invocation.
+     *
+     * @param invocation the request invocation
+     * @param future the request future
+     * @param timeout the timeout in seconds, or zero for none
+     * @param errorCode the XA error code to report on timeout
+     */
+    private void scheduleTimeout(final Invocation invocation, final CompletableFuture<?> future, final int timeout, final int errorCode) {
+        if (timeout <= 0) {
+            return;
+        }
+        final long millis = timeout * 1000L;
+        final XnioExecutor.Key key = getIoThread().executeAfter(() -> {
+            if (future.completeExceptionally(Log.log.responseTimedOutXa(errorCode, millis))) {
+                releaseTimedOut(invocation);
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+        future.whenComplete((ignored, t) -> key.remove());
+    }
+
+    /**
+     * Remove an invocation which timed out from the tracker, so that a peer which never answers cannot use up the
+     * invocation IDs.  The ID is held back for a while first, so that a late response is discarded rather than taken
+     * for the response to a new invocation; if too many IDs are held back already, it is released right away, and a
+     * late response for it is discarded as the response to an unknown invocation.
+     *
+     * @param invocation the invocation which timed out
+     */
+    void releaseTimedOut(final Invocation invocation) {
+        if (quarantined.incrementAndGet() <= MAX_QUARANTINED) try {
+            getIoThread().executeAfter(() -> {
+                quarantined.decrementAndGet();
+                invocationTracker.remove(invocation);
+            }, QUARANTINE_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        } catch (RejectedExecutionException ignored) {
+            // the worker is shutting down; fall through
+        }
+        quarantined.decrementAndGet();
+        invocationTracker.remove(invocation);
+    }
+
+    private XnioExecutor getIoThread() {
+        return channel.getConnection().getEndpoint().getXnioWorker().getIoThread();
+    }
+
+    private static void writeXaRequest(final OutputStream os, final int index, final int msgId, final Xid xid, final XidHandle xidHandle, final boolean onePhase, final int remainingTime, final ConnectionPeerIdentity peerIdentity) throws IOException {
+        StreamUtils.writeInt8(os, index >> 8);
+        StreamUtils.writeInt8(os, index);
+        StreamUtils.writeInt8(os, msgId);
+        if (xidHandle == null || ! xidHandle.confirmed) Protocol.writeParam(Protocol.P_XID, os, xid);
+        if (xidHandle != null) Protocol.writeParam(Protocol.P_XID_HANDLE, os, xidHandle.handle, Protocol.UNSIGNED);
+        final int peerIdentityId = peerIdentity.getId();
+        if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
+        if (onePhase) Protocol.writeParam(Protocol.P_ONE_PHASE, os);
+        if (remainingTime >= 0) Protocol.writeParam(Protocol.P_TIME_REMAINING, os, remainingTime, Protocol.UNSIGNED);
+    }
+
+    private void addToBatch(final XaInvocation invocation, final byte[] request) {
+        final BatchInvocation batch;
+        final boolean first;
+        final boolean full;
+        synchronized (batchLock) {
+            BatchInvocation openBatch = this.openBatch;
+            first = openBatch == null;
+            if (first) {
+                this.openBatch = openBatch = invocationTracker.addInvocation(BatchInvocation::new);
+            }
+            batch = openBatch;
+            batch.add(invocation, request);
+            full = batch.size() >= BATCH_MAX_SIZE;
+            if (full) {
+                this.openBatch = null;
+            }
+        }
+        if (full) {
+            sendBatch(batch);
+        } else if (first) {
+            final XnioWorker worker = channel.getConnection().getEndpoint().getXnioWorker();
+            worker.getIoThread().executeAfter(() -> worker.execute(() -> flushBatch(batch)), BATCH_WINDOW, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private void flushBatch(final BatchInvocation batch) {
+        synchronized (batchLock) {
+            if (openBatch != batch) {
+                // already sent because it filled up
+                return;
+            }
+            openBatch = null;
+        }
+        sendBatch(batch);
+    }
+
+    private void sendBatch(final BatchInvocation batch) {
+        if (batch.size() == 1) {
+            // no point in an envelope; send the lone request as it is
+            invocationTracker.remove(batch);
+            final XaInvocation invocation = batch.invocations.get(0);
+            try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
+                os.write(batch.requests.get(0));
             } catch (IOException e) {
-                throw Log.log.responseFailedXa(e, XAException.XAER_RMERR);
+                invocationTracker.remove(invocation);
+                invocation.future.completeExceptionally(Log.log.failedToSendXA(e, XAException.XAER_RMERR));
+            }
+            return;
+        }
+        try (MessageBuffer buffer = MessageBuffer.get()) {
+            final DataOutputStream dos = buffer.getDataOutput();
+            dos.writeShort(batch.getIndex());
+            dos.writeByte(Protocol.M_BATCH);
+            for (byte[] request : batch.requests) {
+                Protocol.writeParam(Protocol.P_BATCH_ENTRY, buffer, request);
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw Log.log.interruptedXA(XAException.XAER_RMERR);
+            try (MessageOutputStream os = invocationTracker.allocateMessage(batch)) {
+                buffer.writeTo(os);
+            }
+            final CompletableFuture<?>[] futures = new CompletableFuture<?>[batch.size()];
+            for (int i = 0; i < futures.length; i ++) {
+                futures[i] = batch.invocations.get(i).future;
+            }
+            CompletableFuture.allOf(futures).whenComplete((ignored, t) -> {
+                if (! batch.answered) {
+                    // every entry timed out or failed without a response to the envelope
+                    releaseTimedOut(batch);
+                }
+            });
         } catch (IOException e) {
-            // failed to close the response, but we don't care too much
-            Log.log.inboundException(e);
+            invocationTracker.remove(batch);
+            for (XaInvocation invocation : batch.invocations) {
+                invocationTracker.remove(invocation);
+                invocation.future.completeExceptionally(Log.log.failedToSendXA(e, XAException.XAER_RMERR));
+            }
         }
     }
 
-    public int prepare(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        boolean readOnly = false;
-        final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
-        // write request
-        try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
-            os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_PREPARE);
-            Protocol.writeParam(Protocol.P_XID, os, xid);
-            final int peerIdentityId = peerIdentity.getId();
-            if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
-        } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
+    private static Void toVoid(final Integer ignored) {
+        return null;
+    }
+
+    /**
+     * Read the (optional) error parameter of an XA response, throwing the corresponding exception.
+     *
+     * @param is the response stream
+     * @param id the parameter ID which was read
+     * @throws XAException if the peer reported an XA error
+     * @throws SecurityException if the peer reported a security exception
+     * @throws IOException if the response could not be read
+     */
+    static <I extends InputStream & DataInput> void readXaErrorParam(final I is, int id) throws XAException, IOException {
+        if (id == Protocol.P_XA_ERROR) {
+            int len = StreamUtils.readPackedSignedInt32(is);
+            int error = is.readInt();
+            final XAException xa = Log.log.peerXaException(error);
+            xa.initCause(RemoteExceptionCause.readFromStream(is));
+            if ((id = is.read()) != -1) {
+                XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
+                ex.addSuppressed(xa);
+                throw ex;
+            } else {
+                throw xa;
+            }
+        } else if (id == Protocol.P_SEC_EXC) {
+            int len = StreamUtils.readPackedSignedInt32(is);
+            final SecurityException sx = Log.log.peerSecurityException();
+            sx.initCause(RemoteExceptionCause.readFromStream(is));
+            if ((id = is.read()) != -1) {
+                XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
+                ex.addSuppressed(sx);
+                throw ex;
+            } else {
+                throw sx;
+            }
+        } else if (id != -1) {
+            throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
         }
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
-                if (is.readUnsignedByte() != Protocol.M_RESP_XA_PREPARE) {
+    }
+
+    /**
+     * An invocation for a single-XID XA verb.  The response is decoded and the result future completed directly on
+     * the thread which receives the response, so dependent stages should not block.
+     */
+    static final class XaInvocation extends Invocation {
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        private final int respId;
+        private final int ioErrorCode;
+
+        XaInvocation(final int index, final int respId, final int ioErrorCode) {
+            super(index);
+            this.respId = respId;
+            this.ioErrorCode = ioErrorCode;
+        }
+
+        public void handleResponse(final int parameter, final MessageInputStream is) {
+            handle(is);
+        }
+
+        <I extends InputStream & DataInput> void handle(final I is) {
+            try {
+                if (is.readUnsignedByte() != respId) {
                     throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
                 }
                 int id = is.read();
-                if (id == Protocol.P_XA_ERROR) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    int error = is.readInt();
-                    final XAException xa = Log.log.peerXaException(error);
-                    xa.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(xa);
-                        throw ex;
-                    } else {
-                        throw xa;
-                    }
-                } else if (id == Protocol.P_SEC_EXC) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    final SecurityException sx = Log.log.peerSecurityException();
-                    sx.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(sx);
-                        throw ex;
-                    } else {
-                        throw sx;
-                    }
-                } else if (id == Protocol.P_XA_RDONLY) {
-                    readOnly = true;
-                } else if (id != -1) {
-                    throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
+                if (id == Protocol.P_XA_RDONLY && (respId == Protocol.M_RESP_XA_PREPARE || respId == Protocol.M_RESP_XA_BEFORE_PREPARE)) {
+                    future.complete(Integer.valueOf(XAResource.XA_RDONLY));
+                } else {
+                    readXaErrorParam(is, id);
+                    future.complete(Integer.valueOf(XAResource.XA_OK));
                 }
             } catch (IOException e) {
-                throw Log.log.responseFailedXa(e, XAException.XAER_RMERR);
+                future.completeExceptionally(Log.log.responseFailedXa(e, ioErrorCode));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw Log.log.interruptedXA(XAException.XAER_RMERR);
-        } catch (IOException e) {
-            // failed to close the response, but we don't care too much
-            Log.log.inboundException(e);
         }
-        return readOnly ? XAResource.XA_RDONLY : XAResource.XA_OK;
+
+        public void handleClosed() {
+            future.completeExceptionally(Log.log.connectionClosedXa(XAException.XAER_RMFAIL));
+        }
     }
 
-    public void forget(final Xid xid, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
-        // write request
-        try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
-            os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_FORGET);
-            Protocol.writeParam(Protocol.P_XID, os, xid);
-            final int peerIdentityId = peerIdentity.getId();
-            if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
-        } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
+    /**
+     * The invocation for the capability exchange which is done when the channel is opened.  Any response that cannot
+     * be understood leaves the channel on the base protocol rather than failing it.
+     */
+    static final class CapabilityInvocation extends Invocation {
+        private final TransactionClientChannel clientChannel;
+        private final FutureResult<TransactionClientChannel> futureResult;
+
+        CapabilityInvocation(final int index, final TransactionClientChannel clientChannel, final FutureResult<TransactionClientChannel> futureResult) {
+            super(index);
+            this.clientChannel = clientChannel;
+            this.futureResult = futureResult;
         }
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
-                if (is.readUnsignedByte() != Protocol.M_RESP_XA_FORGET) {
-                    throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
-                }
-                int id = is.read();
-                if (id == Protocol.P_XA_ERROR) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    int error = is.readInt();
-                    final XAException xa = Log.log.peerXaException(error);
-                    xa.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(xa);
-                        throw ex;
-                    } else {
-                        throw xa;
-                    }
-                } else if (id == Protocol.P_SEC_EXC) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    final SecurityException sx = Log.log.peerSecurityException();
-                    sx.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(sx);
-                        throw ex;
-                    } else {
-                        throw sx;
+
+        public void handleResponse(final int parameter, final MessageInputStream is) {
+            int version = Protocol.VERSION_MIN;
+            int features = 0;
+            try {
+                if (is.readUnsignedByte() == Protocol.M_RESP_CAPABILITY) {
+                    int id;
+                    while ((id = is.read()) != -1) {
+                        final int len = StreamUtils.readPackedUnsignedInt32(is);
+                        if (id == Protocol.P_CAP_VERSION) {
+                            version = Math.min(Protocol.readIntParam(is, len), Protocol.VERSION_MAX);
+                        } else if (id == Protocol.P_CAP_FEATURES) {
+                            features = Protocol.readIntParam(is, len) & Protocol.SUPPORTED_FEATURES;
+                        } else {
+                            Protocol.skipParam(is, len);
+                        }
                     }
-                } else if (id != -1) {
-                    throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
                 }
             } catch (IOException e) {
-                throw Log.log.responseFailedXa(e, XAException.XAER_RMERR);
+                Log.log.inboundException(e);
+                version = Protocol.VERSION_MIN;
+                features = 0;
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw Log.log.interruptedXA(XAException.XAER_RMERR);
-        } catch (IOException e) {
-            // failed to close the response, but we don't care too much
-            Log.log.inboundException(e);
+            clientChannel.version = version;
+            clientChannel.features = features;
+            futureResult.setResult(clientChannel);
+        }
+
+        public void handleClosed() {
+            futureResult.setException(new ClosedChannelException());
         }
     }
 
-    public void commit(final Xid xid, final boolean onePhase, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
-        // write request
-        try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
-            os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_COMMIT);
-            Protocol.writeParam(Protocol.P_XID, os, xid);
-            final int peerIdentityId = peerIdentity.getId();
-            if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
-            if (onePhase) Protocol.writeParam(Protocol.P_ONE_PHASE, os);
-        } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
+    /**
+     * The invocation for a batch of single-XID requests.  Each request in the batch has an invocation of its own, which
+     * is completed from the corresponding entry of the batch response.
+     */
+    final class BatchInvocation extends Invocation {
+        // protected by {@code batchLock} until sent
+        final ArrayList<XaInvocation> invocations = new ArrayList<>();
+        final ArrayList<byte[]> requests = new ArrayList<>();
+        volatile boolean answered;
+
+        BatchInvocation(final int index) {
+            super(index);
+        }
+
+        void add(final XaInvocation invocation, final byte[] request) {
+            invocations.add(invocation);
+            requests.add(request);
         }
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
-                if (is.readUnsignedByte() != Protocol.M_RESP_XA_COMMIT) {
+
+        int size() {
+            return invocations.size();
+        }
+
+        public void handleResponse(final int parameter, final MessageInputStream is) {
+            answered = true;
+            final ArrayList<XaInvocation> remaining = new ArrayList<>(invocations);
+            try {
+                if (is.readUnsignedByte() != Protocol.M_RESP_BATCH) {
                     throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
                 }
-                int id = is.read();
-                if (id == Protocol.P_XA_ERROR) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    int error = is.readInt();
-                    final XAException xa = Log.log.peerXaException(error);
-                    xa.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(xa);
-                        throw ex;
-                    } else {
-                        throw xa;
+                int id;
+                while ((id = is.read()) != -1) {
+                    final int len = StreamUtils.readPackedUnsignedInt32(is);
+                    if (id != Protocol.P_BATCH_ENTRY) {
+                        Protocol.skipParam(is, len);
+                        continue;
                     }
-                } else if (id == Protocol.P_SEC_EXC) {
-                    int len = StreamUtils.readPackedSignedInt32(is);
-                    final SecurityException sx = Log.log.peerSecurityException();
-                    sx.initCause(RemoteExceptionCause.readFromStream(is));
-                    if ((id = is.read()) != -1) {
-                        XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                        ex.addSuppressed(sx);
-                        throw ex;
-                    } else {
-                        throw sx;
+                    final byte[] bytes = new byte[len];
+                    StreamUtils.readFully(is, bytes);
+                    final DataInputStream entry = new DataInputStream(new ByteArrayInputStream(bytes));
+                    final int invId = entry.readUnsignedShort();
+                    for (int i = 0; i < remaining.size(); i ++) {
+                        final XaInvocation invocation = remaining.get(i);
+                        if (invocation.getIndex() == invId) {
+                            remaining.remove(i);
+                            invocationTracker.remove(invocation);
+                            invocation.handle(entry);
+                            break;
+                        }
                     }
-                } else if (id != -1) {
-                    throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
+                }
+                // the peer did not answer these
+                for (XaInvocation invocation : remaining) {
+                    invocationTracker.remove(invocation);
+                    invocation.future.completeExceptionally(Log.log.unknownResponseXa(XAException.XAER_RMERR));
                 }
             } catch (IOException e) {
-                throw Log.log.responseFailedXa(e, XAException.XAER_RMFAIL);
+                for (XaInvocation invocation : remaining) {
+                    invocationTracker.remove(invocation);
+                    invocation.future.completeExceptionally(Log.log.responseFailedXa(e, invocation.ioErrorCode));
+                }
+            } catch (XAException e) {
+                for (XaInvocation invocation : remaining) {
+                    invocationTracker.remove(invocation);
+                    invocation.future.completeExceptionally(Log.log.unknownResponseXa(XAException.XAER_RMERR));
+                }
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw Log.log.interruptedXA(XAException.XAER_RMERR);
-        } catch (IOException e) {
-            // failed to close the response, but we don't care too much
-            Log.log.inboundException(e);
         }
-    }
 
-    @NotNull
-    public Xid[] recover(final int flag, final String parentName, final ConnectionPeerIdentity peerIdentity) throws XAException {
-        if (flag != XAResource.TMSTARTRSCAN) {
-            return SimpleXid.NO_XIDS;
+        public void handleClosed() {
+            // each request is notified by its own invocation
         }
-        final InvocationTracker invocationTracker = getInvocationTracker();
-        final BlockingInvocation invocation = invocationTracker.addInvocation(BlockingInvocation::new);
-        // write request
-        try (MessageOutputStream os = invocationTracker.allocateMessage(invocation)) {
-            os.writeShort(invocation.getIndex());
-            os.writeByte(Protocol.M_XA_RECOVER);
-            final int peerIdentityId = peerIdentity.getId();
-            if (peerIdentityId != 0) Protocol.writeParam(Protocol.P_SEC_CONTEXT, os, peerIdentityId, Protocol.UNSIGNED);
-            Protocol.writeParam(Protocol.P_PARENT_NAME, os, parentName);
-        } catch (IOException e) {
-            throw Log.log.failedToSendXA(e, XAException.XAER_RMERR);
+    }
+
+    /**
+     * An invocation for the recovery scan verb.
+     */
+    static final class RecoverInvocation extends Invocation {
+        final CompletableFuture<RecoveryPage> future = new CompletableFuture<>();
+
+        RecoverInvocation(final int index) {
+            super(index);
         }
-        final ArrayList<Xid> recoveryList = new ArrayList<>();
-        try (BlockingInvocation.Response response = invocation.getResponse()) {
-            try (MessageInputStream is = response.getInputStream()) {
+
+        public void handleResponse(final int parameter, final MessageInputStream is) {
+            final ArrayList<Xid> recoveryList = new ArrayList<>();
+            try {
                 if (is.readUnsignedByte() != Protocol.M_RESP_XA_RECOVER) {
                     throw Log.log.unknownResponseXa(XAException.XAER_RMERR);
                 }
-                int id = is.read();
-                for (;;) {
-                    if (id == Protocol.P_XID) {
-                        recoveryList.add(Protocol.readXid(is, StreamUtils.readPackedUnsignedInt32(is)));
-                    } else if (id == Protocol.P_XA_ERROR) {
-                        int len = StreamUtils.readPackedSignedInt32(is);
-                        int error = is.readInt();
-                        final XAException xa = Log.log.peerXaException(error);
-                        xa.initCause(RemoteExceptionCause.readFromStream(is));
-                        if ((id = is.read()) != -1) {
-                            XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                            ex.addSuppressed(xa);
-                            throw ex;
-                        } else {
-                            throw xa;
-                        }
-                    } else if (id == Protocol.P_SEC_EXC) {
-                        int len = StreamUtils.readPackedSignedInt32(is);
-                        final SecurityException sx = Log.log.peerSecurityException();
-                        sx.initCause(RemoteExceptionCause.readFromStream(is));
-                        if ((id = is.read()) != -1) {
-                            XAException ex = Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                            ex.addSuppressed(sx);
-                            throw ex;
-                        } else {
-                            throw sx;
-                        }
-                    } else if (id != -1) {
-                        throw Log.log.unrecognizedParameter(XAException.XAER_RMFAIL, id);
-                    } else {
-                        break;
-                    }
+                int id;
+                while ((id = is.read()) == Protocol.P_XID) {
+                    recoveryList.add(Protocol.readXid(is, StreamUtils.readPackedUnsignedInt32(is)));
+                }
+                boolean more = false;
+                int scanId = -1;
+                if (id == Protocol.P_RECOVER_MORE) {
+                    Protocol.skipParam(is, StreamUtils.readPackedUnsignedInt32(is));
+                    more = true;
+                    id = is.read();
+                }
+                if (id == Protocol.P_RECOVER_SCAN) {
+                    scanId = Protocol.readIntParam(is, StreamUtils.readPackedUnsignedInt32(is));
                     id = is.read();
                 }
+                readXaErrorParam(is, id);
+                future.complete(new RecoveryPage(recoveryList.toArray(SimpleXid.NO_XIDS), more, scanId));
+            } catch (IOException e) {
+                future.completeExceptionally(Log.log.responseFailedXa(e, XAException.XAER_RMERR));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
             }
-            return recoveryList.toArray(SimpleXid.NO_XIDS);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw Log.log.interruptedXA(XAException.XAER_RMERR);
-        } catch (IOException e) {
-            throw Log.log.responseFailedXa(e, XAException.XAER_RMERR);
+        }
+
+        public void handleClosed() {
+            future.completeExceptionally(Log.log.connectionClosedXa(XAException.XAER_RMFAIL));
+        }
+    }
+
+    static final class XidHandle {
+        final SimpleXid xid;
+        final int handle;
+        // set once the peer has answered a request which registered the handle
+        volatile boolean confirmed;
+
+        XidHandle(final SimpleXid xid, final int handle) {
+            this.xid = xid;
+            this.handle = handle;
+        }
+    }
+
+    static final class RecoveryPage {
+        final Xid[] xids;
+        final boolean more;
+        // the ID by which to continue the scan, or -1 if there is none
+        final int scanId;
+
+        RecoveryPage(final Xid[] xids, final boolean more, final int scanId) {
+            this.xids = xids;
+            this.more = more;
+            this.scanId = scanId;
         }
     }
 
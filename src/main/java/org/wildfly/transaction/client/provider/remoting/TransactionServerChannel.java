@@ -18,17 +18,29 @@
 
 package org.wildfly.transaction.client.provider.remoting;
 
+import static java.security.AccessController.doPrivileged;
 import static org.jboss.remoting3.util.StreamUtils.writeInt8;
 import static org.jboss.remoting3.util.StreamUtils.writePackedUnsignedInt31;
 import static org.wildfly.transaction.client._private.Log.log;
 import static org.wildfly.transaction.client.provider.remoting.Protocol.*;
 import static org.wildfly.transaction.client.provider.remoting.RemotingTransactionServer.LocalTxn;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.PrivilegedAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ObjIntConsumer;
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
 import javax.transaction.RollbackException;
@@ -63,6 +75,35 @@ final class TransactionServerChannel {
     private final Channel channel;
     private final Channel.Receiver receiver = new ReceiverImpl();
     private final LocalTransactionContext localTransactionContext;
+    // established by the capability exchange; a client which never sends one uses the base protocol
+    private volatile int version = VERSION_MIN;
+    private volatile int features;
+    // cached permission checks, by security context ID
+    private final ConcurrentHashMap<Integer, PermissionDecision> permissionDecisions = new ConcurrentHashMap<>();
+    // XIDs registered by the client, by handle, and the handle of each of them
+    private final ConcurrentHashMap<Integer, SimpleXid> xidHandles = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SimpleXid, Integer> handlesByXid = new ConcurrentHashMap<>();
+    // open paged recovery scans, by scan ID; guarded by itself
+    private final Map<Integer, RecoveryScan> recoveryScans = new HashMap<>();
+    // protected by {@code recoveryScans}
+    private int nextScanId;
+
+    // the actions of the XA verbs which need no request state besides the XID and invocation ID, created once so
+    // that running them under the caller's identity does not allocate
+    private final ObjIntConsumer<SimpleXid> xaRollback = this::xaRollback;
+    private final ObjIntConsumer<SimpleXid> xaRollbackOnly = this::xaRollbackOnly;
+    private final ObjIntConsumer<SimpleXid> xaForget = this::xaForget;
+
+    private static final int NO_SEC_CONTEXT = -1;
+    private static final int MAX_PERMISSION_DECISIONS = 64;
+    // a client releases its handles before the final requests are handled here, so allow for some lag
+    private static final int MAX_XID_HANDLES = 2 * Protocol.MAX_XID_HANDLES;
+    private static final int MAX_RECOVERY_SCANS = 64;
+
+    static final int RECOVER_PAGE_SIZE = Integer.parseInt(doPrivileged((PrivilegedAction<String>) () -> System.getProperty("org.wildfly.transaction.client.remoting.recover-page-size", "256")));
+
+    // the batch whose entry is being handled by the current thread, if any
+    private static final ThreadLocal<BatchResponse.Entry> currentBatchEntry = new ThreadLocal<>();
 
     private static final Attachments.Key<TransactionServerChannel> KEY = new Attachments.Key<>(TransactionServerChannel.class);
 
@@ -85,99 +126,429 @@ final class TransactionServerChannel {
 
         public void handleMessage(final Channel channel, final MessageInputStream messageOriginal) {
             channel.receiveMessage(this);
+            final OrderedExecutor executor = server.getTransactionService().getExecutor();
+            if (executor == null) {
+                try (MessageInputStream message = messageOriginal) {
+                    final int invId = message.readUnsignedShort();
+                    final int id = message.read();
+                    if (admitRequest(invId, id)) try {
+                        handleRequest(message, invId, id);
+                    } finally {
+                        releaseRequest(id);
+                    }
+                } catch (IOException e) {
+                    log.inboundException(e);
+                }
+                return;
+            }
+            final byte[] request;
             try (MessageInputStream message = messageOriginal) {
-                final int invId = message.readUnsignedShort();
+                final ByteArrayOutputStream os = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[256];
+                int res;
+                while ((res = message.read(buffer)) != -1) {
+                    os.write(buffer, 0, res);
+                }
+                request = os.toByteArray();
+            } catch (IOException e) {
+                log.inboundException(e);
+                return;
+            }
+            if (request.length < 2) {
+                log.inboundException(new EOFException());
+                return;
+            }
+            final int invId = (request[0] & 0xff) << 8 | request[1] & 0xff;
+            final int id = request.length > 2 ? request[2] & 0xff : -1;
+            final DataInputStream message = new DataInputStream(new ByteArrayInputStream(request, 3, request.length - 3));
+            if (id == M_CAPABILITY || id == M_BATCH) {
+                // cheap to handle; the entries of a batch are dispatched one by one
                 try {
-                    final int id = message.readUnsignedByte();
-                    switch (id) {
-                        case M_CAPABILITY: {
-                            handleCapabilityMessage(message, invId);
-                            break;
-                        }
+                    handleRequest(message, invId, id);
+                } catch (IOException e) {
+                    log.inboundException(e);
+                }
+                return;
+            }
+            if (! admitRequest(invId, id)) {
+                return;
+            }
+            executor.execute(getOrderingKey(request, 3), () -> {
+                try {
+                    handleRequest(message, invId, id);
+                } catch (Throwable t) {
+                    log.inboundException(t);
+                } finally {
+                    releaseRequest(id);
+                }
+            });
+        }
 
-                        case M_UT_ROLLBACK: {
-                            handleUserTxnRollback(message, invId);
-                            break;
-                        }
-                        case M_UT_COMMIT: {
-                            handleUserTxnCommit(message, invId);
-                            break;
-                        }
+        public void handleError(final Channel channel, final IOException error) {
+            endRecoveryScans();
+            permissionDecisions.clear();
+            xidHandles.clear();
+            handlesByXid.clear();
+        }
 
-                        case M_XA_ROLLBACK: {
-                            handleXaTxnRollback(message, invId);
-                            break;
-                        }
-                        case M_XA_BEFORE: {
-                            handleXaTxnBefore(message, invId);
-                            break;
-                        }
-                        case M_XA_PREPARE: {
-                            handleXaTxnPrepare(message, invId);
-                            break;
-                        }
-                        case M_XA_FORGET: {
-                            handleXaTxnForget(message, invId);
-                            break;
-                        }
-                        case M_XA_COMMIT: {
-                            handleXaTxnCommit(message, invId);
-                            break;
-                        }
-                        case M_XA_RECOVER: {
-                            handleXaTxnRecover(message, invId);
-                            break;
-                        }
-                        case M_XA_RB_ONLY: {
-                            handleXaTxnRollbackOnly(message, invId);
-                            break;
-                        }
+        public void handleEnd(final Channel channel) {
+            endRecoveryScans();
+            permissionDecisions.clear();
+            xidHandles.clear();
+            handlesByXid.clear();
+        }
+    }
 
-                        default: {
-                            try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
-                                outputStream.writeShort(invId);
-                                outputStream.writeByte(M_RESP_ERROR);
-                            } catch (IOException e) {
-                                log.outboundException(e);
-                            }
-                            break;
-                        }
-                    }
-                } catch (Throwable t) {
+    /**
+     * Account for a request, rejecting it if the server is overloaded.  Only recovery scans count as new work; the
+     * other requests complete existing transactions and are always admitted.
+     *
+     * @param invId the invocation ID of the request
+     * @param id the message ID of the request
+     * @return {@code true} if the request should be handled, {@code false} if it was rejected
+     */
+    private boolean admitRequest(final int invId, final int id) {
+        if (id == M_CAPABILITY || id == M_BATCH) {
+            // batch entries are accounted for individually
+            return true;
+        }
+        if (server.acquireRequest(id != M_XA_RECOVER)) {
+            return true;
+        }
+        writeExceptionResponse(M_RESP_XA_RECOVER, invId, log.serverOverloadedXa(XAException.XAER_RMFAIL));
+        return false;
+    }
+
+    private void releaseRequest(final int id) {
+        if (id != M_CAPABILITY && id != M_BATCH) {
+            server.releaseRequest();
+        }
+    }
+
+    void handleRequest(final InputStream message, final int invId, final int id) throws IOException {
+        try {
+            switch (id) {
+                case M_CAPABILITY: {
+                    handleCapabilityMessage(message, invId);
+                    break;
+                }
+
+                case M_UT_ROLLBACK: {
+                    handleUserTxnRollback(message, invId);
+                    break;
+                }
+                case M_UT_COMMIT: {
+                    handleUserTxnCommit(message, invId);
+                    break;
+                }
+
+                case M_XA_ROLLBACK: {
+                    handleXaTxnRollback(message, invId);
+                    break;
+                }
+                case M_XA_BEFORE: {
+                    handleXaTxnBefore(message, invId);
+                    break;
+                }
+                case M_XA_PREPARE: {
+                    handleXaTxnPrepare(message, invId);
+                    break;
+                }
+                case M_XA_BEFORE_PREPARE: {
+                    handleXaTxnBeforePrepare(message, invId);
+                    break;
+                }
+                case M_XA_FORGET: {
+                    handleXaTxnForget(message, invId);
+                    break;
+                }
+                case M_XA_COMMIT: {
+                    handleXaTxnCommit(message, invId);
+                    break;
+                }
+                case M_XA_RECOVER: {
+                    handleXaTxnRecover(message, invId);
+                    break;
+                }
+                case M_XA_RB_ONLY: {
+                    handleXaTxnRollbackOnly(message, invId);
+                    break;
+                }
+                case M_BATCH: {
+                    handleBatch(message, invId);
+                    break;
+                }
+
+                default: {
                     try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
                         outputStream.writeShort(invId);
                         outputStream.writeByte(M_RESP_ERROR);
                     } catch (IOException e) {
                         log.outboundException(e);
                     }
-                    throw t;
+                    break;
                 }
+            }
+        } catch (Throwable t) {
+            try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
+                outputStream.writeShort(invId);
+                outputStream.writeByte(M_RESP_ERROR);
             } catch (IOException e) {
-                log.inboundException(e);
+                log.outboundException(e);
             }
-        }
-
-        public void handleError(final Channel channel, final IOException error) {
-        }
-
-        public void handleEnd(final Channel channel) {
+            throw t;
         }
     }
 
-    void handleCapabilityMessage(final MessageInputStream message, final int invId) throws IOException {
-        while (message.read() != -1) {
-            // ignore parameters
-            readIntParam(message, StreamUtils.readPackedUnsignedInt32(message));
+    void handleCapabilityMessage(final InputStream message, final int invId) throws IOException {
+        int param;
+        int len;
+        int version = -1;
+        int features = -1;
+        while ((param = message.read()) != -1) {
+            len = StreamUtils.readPackedUnsignedInt32(message);
+            switch (param) {
+                case P_CAP_VERSION: {
+                    version = Math.min(readIntParam(message, len), VERSION_MAX);
+                    break;
+                }
+                case P_CAP_FEATURES: {
+                    features = readIntParam(message, len) & SUPPORTED_FEATURES;
+                    break;
+                }
+                default: {
+                    // unknown capabilities are simply not acknowledged
+                    skipParam(message, len);
+                    break;
+                }
+            }
         }
-        // acknowledge no capabilities
+        this.version = Math.max(version, VERSION_MIN);
+        this.features = Math.max(features, 0);
+        // acknowledge recognized capabilities
         try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
             outputStream.writeShort(invId);
             outputStream.writeByte(M_RESP_CAPABILITY);
+            if (version != -1) writeParam(P_CAP_VERSION, outputStream, version, UNSIGNED);
+            if (features != -1) writeParam(P_CAP_FEATURES, outputStream, features, UNSIGNED);
         }
         return;
     }
 
-    void handleUserTxnRollback(final MessageInputStream message, final int invId) throws IOException {
+    /**
+     * Get the protocol version agreed with the client.
+     *
+     * @return the protocol version
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Determine whether the client agreed to use the given feature on this channel.
+     *
+     * @param feature the {@code Protocol} feature bit
+     * @return {@code true} if the feature may be used, {@code false} otherwise
+     */
+    boolean supports(final int feature) {
+        return (features & feature) == feature;
+    }
+
+    void handleBatch(final InputStream message, final int invId) throws IOException {
+        final BatchResponse batch = new BatchResponse(invId);
+        try {
+            int param;
+            int len;
+            while ((param = message.read()) != -1) {
+                len = StreamUtils.readPackedUnsignedInt32(message);
+                if (param != P_BATCH_ENTRY) {
+                    // ignore bad parameter
+                    skipParam(message, len);
+                    continue;
+                }
+                final byte[] bytes = new byte[len];
+                StreamUtils.readFully(message, bytes);
+                batch.expectEntry();
+                server.acquireRequest(true);
+                final Runnable task = () -> {
+                    final BatchResponse.Entry batchEntry = batch.new Entry();
+                    currentBatchEntry.set(batchEntry);
+                    try {
+                        handleBatchEntry(batchEntry, new DataInputStream(new ByteArrayInputStream(bytes)));
+                    } catch (IOException e) {
+                        // the entry is too short to be answered
+                        log.inboundException(e);
+                        if (! batchEntry.isAnswered()) {
+                            batch.entryDone();
+                        }
+                    } finally {
+                        currentBatchEntry.remove();
+                        server.releaseRequest();
+                    }
+                };
+                final OrderedExecutor executor = server.getTransactionService().getExecutor();
+                if (executor == null) {
+                    task.run();
+                } else {
+                    executor.execute(getOrderingKey(bytes, 3), task);
+                }
+            }
+        } finally {
+            batch.entryDone();
+        }
+    }
+
+    /**
+     * Get the key which orders the handling of a request relative to other requests: the global transaction ID of
+     * its XID parameter, if it has one.  An XID handle which the request registers is registered right away, so that
+     * the requests which follow it can be ordered before it is handled.
+     *
+     * @param request the request bytes
+     * @param offset the offset of the request parameters
+     * @return the ordering key, or {@code null} if the request is not ordered
+     */
+    Object getOrderingKey(final byte[] request, final int offset) {
+        final ByteArrayInputStream is = new ByteArrayInputStream(request, offset, request.length - offset);
+        SimpleXid xid = null;
+        int xidHandle = -1;
+        try {
+            int param;
+            while ((param = is.read()) != -1) {
+                final int len = StreamUtils.readPackedUnsignedInt32(is);
+                if (param == P_XID) {
+                    xid = readXid(is, len);
+                } else if (param == P_XID_HANDLE) {
+                    xidHandle = readIntParam(is, len);
+                } else {
+                    skipParam(is, len);
+                }
+            }
+        } catch (IOException e) {
+            // the handler reports the malformed request
+            return null;
+        }
+        xid = resolveXid(xid, xidHandle, false);
+        return xid == null ? null : xid.withoutBranch();
+    }
+
+    /**
+     * Resolve the XID of a request which may refer to it by handle.  A request which is the last one for its XID
+     * releases the handle of the XID, even if it does not carry the handle itself.  Past the limit, new handles are
+     * not registered; a request which refers to an unregistered handle alone is answered with a parameter error.
+     * Clients send the XID itself with the last request for it, so that a refused handle can only fail a request of
+     * the first phase.
+     *
+     * @param xid the XID parameter of the request, or {@code null} if it has none
+     * @param xidHandle the XID handle parameter of the request, or -1 if it has none
+     * @param release {@code true} if this is the last use of the handle
+     * @return the XID, or {@code null} if there is none
+     */
+    SimpleXid resolveXid(final SimpleXid xid, final int xidHandle, final boolean release) {
+        if (xidHandle == -1) {
+            if (release && xid != null) {
+                releaseXid(xid);
+            }
+            return xid;
+        }
+        final Integer key = Integer.valueOf(xidHandle);
+        if (release) {
+            final SimpleXid registered = xidHandles.remove(key);
+            if (registered != null) {
+                handlesByXid.remove(registered, key);
+            }
+            final SimpleXid resolved = xid == null ? registered : xid;
+            if (resolved != null) {
+                releaseXid(resolved);
+            }
+            return resolved;
+        } else if (xid != null) {
+            registerXidHandle(key, xid);
+            return xid;
+        } else {
+            return xidHandles.get(key);
+        }
+    }
+
+    private void registerXidHandle(final Integer key, final SimpleXid xid) {
+        if (xidHandles.size() >= MAX_XID_HANDLES && ! xidHandles.containsKey(key)) {
+            return;
+        }
+        final SimpleXid previousXid = xidHandles.put(key, xid);
+        if (previousXid != null && ! previousXid.equals(xid)) {
+            handlesByXid.remove(previousXid, key);
+        }
+        final Integer previousHandle = handlesByXid.put(xid, key);
+        if (previousHandle != null && ! previousHandle.equals(key)) {
+            xidHandles.remove(previousHandle, xid);
+        }
+    }
+
+    private void releaseXid(final SimpleXid xid) {
+        final Integer handle = handlesByXid.remove(xid);
+        if (handle != null) {
+            xidHandles.remove(handle, xid);
+        }
+    }
+
+    void releaseXidHandle(final int xidHandle) {
+        if (xidHandle != -1) {
+            final Integer key = Integer.valueOf(xidHandle);
+            final SimpleXid xid = xidHandles.remove(key);
+            if (xid != null) {
+                handlesByXid.remove(xid, key);
+            }
+        }
+    }
+
+    void handleBatchEntry(final BatchResponse.Entry batchEntry, final DataInputStream entry) throws IOException {
+        final int invId = entry.readUnsignedShort();
+        try {
+            final int id = entry.readUnsignedByte();
+            switch (id) {
+                case M_XA_ROLLBACK: {
+                    handleXaTxnRollback(entry, invId);
+                    break;
+                }
+                case M_XA_BEFORE: {
+                    handleXaTxnBefore(entry, invId);
+                    break;
+                }
+                case M_XA_PREPARE: {
+                    handleXaTxnPrepare(entry, invId);
+                    break;
+                }
+                case M_XA_BEFORE_PREPARE: {
+                    handleXaTxnBeforePrepare(entry, invId);
+                    break;
+                }
+                case M_XA_FORGET: {
+                    handleXaTxnForget(entry, invId);
+                    break;
+                }
+                case M_XA_COMMIT: {
+                    handleXaTxnCommit(entry, invId);
+                    break;
+                }
+                case M_XA_RB_ONLY: {
+                    handleXaTxnRollbackOnly(entry, invId);
+                    break;
+                }
+                default: {
+                    // only single-XID operations may be batched
+                    writeSimpleResponse(M_RESP_ERROR, invId);
+                    break;
+                }
+            }
+        } catch (Throwable t) {
+            // one bad entry must not prevent the rest of the batch from being answered, but it is answered only once
+            if (! batchEntry.isAnswered()) {
+                writeSimpleResponse(M_RESP_ERROR, invId);
+            }
+            log.inboundException(t);
+        }
+    }
+
+    void handleUserTxnRollback(final InputStream message, final int invId) throws IOException {
         int param;
         int len;
         int context = 0;
@@ -207,9 +578,10 @@ final class TransactionServerChannel {
             writeParamError(invId);
             return;
         }
-        final LocalTxn txn = server.getTxnMap().removeKey(context);
+        final LocalTxn txn = server.removeTxn(context);
         if (txn == null) {
-            // nothing to roll back!
+            // nothing to roll back, or already rolled back by the reaper
+            server.removeReaped(context);
             writeSimpleResponse(M_RESP_UT_ROLLBACK, invId);
             return;
         }
@@ -236,7 +608,7 @@ final class TransactionServerChannel {
         });
     }
 
-    void handleUserTxnCommit(final MessageInputStream message, final int invId) throws IOException {
+    void handleUserTxnCommit(final InputStream message, final int invId) throws IOException {
         int param;
         int len;
         int context = 0;
@@ -266,8 +638,12 @@ final class TransactionServerChannel {
             writeParamError(invId);
             return;
         }
-        final LocalTxn txn = server.getTxnMap().removeKey(context);
+        final LocalTxn txn = server.removeTxn(context);
         if (txn == null) {
+            if (server.removeReaped(context)) {
+                writeExceptionResponse(M_RESP_UT_COMMIT, invId, P_UT_RB_EXC, log.transactionReapedRolledBack(context));
+                return;
+            }
             // nothing to commit!
             writeSimpleResponse(M_RESP_UT_COMMIT, invId);
             return;
@@ -305,15 +681,20 @@ final class TransactionServerChannel {
 
     /////////////////////////
 
-    void handleXaTxnRollback(final MessageInputStream message, final int invId) throws IOException {
+    void handleXaTxnRollback(final InputStream message, final int invId) throws IOException {
         int param;
         int len;
         SimpleXid xid = null;
+        int xidHandle = -1;
         int secContext = 0;
         boolean hasSecContext = false;
         while ((param = message.read()) != - 1) {
             len = StreamUtils.readPackedUnsignedInt32(message);
             switch (param) {
+                case P_XID_HANDLE: {
+                    xidHandle = readIntParam(message, len);
+                    break;
+                }
                 case P_XID: {
                     xid = readXid(message, len);
                     break;
@@ -329,6 +710,7 @@ final class TransactionServerChannel {
                 }
             }
         }
+        xid = resolveXid(xid, xidHandle, true);
         if (xid == null) {
             writeParamError(invId);
             return;
@@ -337,37 +719,44 @@ final class TransactionServerChannel {
         if (securityIdentity == null) {
             return;
         }
-        securityIdentity.runAsObjIntConsumer((x, i) -> {
-            try {
-                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, true);
-                if (importResult == null) {
-                    writeExceptionResponse(M_RESP_XA_ROLLBACK, i, new XAException(XAException.XAER_NOTA));
-                    return;
-                }
-                // run operation while associated
-                importResult.getTransaction().performConsumer(SubordinateTransactionControl::rollback, importResult.getControl());
-                writeSimpleResponse(M_RESP_XA_ROLLBACK, i);
-            } catch (SystemException e) {
-                final XAException xae = new XAException(XAException.XAER_RMERR);
-                xae.initCause(e);
-                writeExceptionResponse(M_RESP_XA_ROLLBACK, i, xae);
-                return;
-            } catch (XAException e) {
-                writeExceptionResponse(M_RESP_XA_ROLLBACK, i, e);
+        securityIdentity.runAsObjIntConsumer(xaRollback, xid, invId);
+    }
+
+    private void xaRollback(final SimpleXid x, final int i) {
+        try {
+            final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, true);
+            if (importResult == null) {
+                writeExceptionResponse(M_RESP_XA_ROLLBACK, i, new XAException(XAException.XAER_NOTA));
                 return;
             }
-        }, xid, invId);
+            // run operation while associated
+            importResult.getTransaction().performConsumer(SubordinateTransactionControl::rollback, importResult.getControl());
+            writeSimpleResponse(M_RESP_XA_ROLLBACK, i);
+        } catch (SystemException e) {
+            final XAException xae = new XAException(XAException.XAER_RMERR);
+            xae.initCause(e);
+            writeExceptionResponse(M_RESP_XA_ROLLBACK, i, xae);
+            return;
+        } catch (XAException e) {
+            writeExceptionResponse(M_RESP_XA_ROLLBACK, i, e);
+            return;
+        }
     }
 
-    void handleXaTxnRollbackOnly(final MessageInputStream message, final int invId) throws IOException {
+    void handleXaTxnRollbackOnly(final InputStream message, final int invId) throws IOException {
         int param;
         int len;
         SimpleXid xid = null;
+        int xidHandle = -1;
         int secContext = 0;
         boolean hasSecContext = false;
         while ((param = message.read()) != - 1) {
             len = StreamUtils.readPackedUnsignedInt32(message);
             switch (param) {
+                case P_XID_HANDLE: {
+                    xidHandle = readIntParam(message, len);
+                    break;
+                }
                 case P_XID: {
                     xid = readXid(message, len);
                     break;
@@ -383,6 +772,7 @@ final class TransactionServerChannel {
                 }
             }
         }
+        xid = resolveXid(xid, xidHandle, false);
         if (xid == null) {
             writeParamError(invId);
             return;
@@ -391,31 +781,41 @@ final class TransactionServerChannel {
         if (securityIdentity == null) {
             return;
         }
-        securityIdentity.runAsObjIntConsumer((x, i) -> {
-            try {
-                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, true);
-                if (importResult == null) {
-                    writeExceptionResponse(M_RESP_XA_RB_ONLY, i, new XAException(XAException.XAER_NOTA));
-                    return;
-                }
-                importResult.getControl().end(XAResource.TMFAIL);
-                writeSimpleResponse(M_RESP_XA_RB_ONLY, i);
-            } catch (XAException e) {
-                writeExceptionResponse(M_RESP_XA_RB_ONLY, i, e);
+        securityIdentity.runAsObjIntConsumer(xaRollbackOnly, xid, invId);
+    }
+
+    private void xaRollbackOnly(final SimpleXid x, final int i) {
+        try {
+            final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, true);
+            if (importResult == null) {
+                writeExceptionResponse(M_RESP_XA_RB_ONLY, i, new XAException(XAException.XAER_NOTA));
                 return;
             }
-        }, xid, invId);
+            importResult.getControl().end(XAResource.TMFAIL);
+            writeSimpleResponse(M_RESP_XA_RB_ONLY, i);
+        } catch (XAException e) {
+            writeExceptionResponse(M_RESP_XA_RB_ONLY, i, e);
+            return;
+        }
     }
 
-    void handleXaTxnBefore(final MessageInputStream message, final int invId) throws IOException {
+    void handleXaTxnBefore(final InputStream message, final int invId) throws IOException {
         int param;
         int len;
         SimpleXid xid = null;
+        int xidHandle = -1;
         int secContext = 0;
         boolean hasSecContext = false;
+        int timeout = 0;
+        long deadline = 0;
+        boolean hasDeadline = false;
         while ((param = message.read()) != - 1) {
             len = StreamUtils.readPackedUnsignedInt32(message);
             switch (param) {
+                case P_XID_HANDLE: {
+                    xidHandle = readIntParam(message, len);
+                    break;
+                }
                 case P_XID: {
                     xid = readXid(message, len);
                     break;
@@ -425,12 +825,20 @@ final class TransactionServerChannel {
                     hasSecContext = true;
                     break;
                 }
+                case P_TIME_REMAINING: {
+                    final int remaining = readIntParam(message, len);
+                    deadline = System.nanoTime() + remaining * 1_000_000_000L;
+                    timeout = Math.max(1, remaining);
+                    hasDeadline = true;
+                    break;
+                }
                 default: {
                     // ignore bad parameter
                     readIntParam(message, len);
                 }
             }
         }
+        xid = resolveXid(xid, xidHandle, false);
         if (xid == null) {
             writeParamError(invId);
             return;
@@ -439,9 +847,17 @@ final class TransactionServerChannel {
         if (securityIdentity == null) {
             return;
         }
+        final int finalTimeout = timeout;
+        final long finalDeadline = deadline;
+        final boolean finalHasDeadline = hasDeadline;
         securityIdentity.runAsObjIntConsumer((x, i) -> {
+            if (finalHasDeadline && System.nanoTime() - finalDeadline >= 0) {
+                // the caller has already given up on this transaction; it will be rolled back
+                writeExceptionResponse(M_RESP_XA_BEFORE, i, log.deadlinePassedXa(XAException.XAER_RMFAIL, x));
+                return;
+            }
             try {
-                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, true);
+                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, finalTimeout, true);
                 if (importResult == null) {
                     writeExceptionResponse(M_RESP_XA_BEFORE, i, new XAException(XAException.XAER_NOTA));
                     return;
@@ -461,15 +877,23 @@ final class TransactionServerChannel {
         }, xid, invId);
     }
 
-    void handleXaTxnPrepare(final MessageInputStream message, final int invId) throws IOException {
+    void handleXaTxnPrepare(final InputStream message, final int invId) throws IOException {
         int param;
         int len;
         SimpleXid xid = null;
+        int xidHandle = -1;
         int secContext = 0;
         boolean hasSecContext = false;
+        int timeout = 0;
+        long deadline = 0;
+        boolean hasDeadline = false;
         while ((param = message.read()) != - 1) {
             len = StreamUtils.readPackedUnsignedInt32(message);
             switch (param) {
+                case P_XID_HANDLE: {
+                    xidHandle = readIntParam(message, len);
+                    break;
+                }
                 case P_XID: {
                     xid = readXid(message, len);
                     break;
@@ -479,12 +903,20 @@ final class TransactionServerChannel {
                     hasSecContext = true;
                     break;
                 }
+                case P_TIME_REMAINING: {
+                    final int remaining = readIntParam(message, len);
+                    deadline = System.nanoTime() + remaining * 1_000_000_000L;
+                    timeout = Math.max(1, remaining);
+                    hasDeadline = true;
+                    break;
+                }
                 default: {
                     // ignore bad parameter
                     readIntParam(message, len);
                 }
             }
         }
+        xid = resolveXid(xid, xidHandle, false);
         if (xid == null) {
             writeParamError(invId);
             return;
@@ -493,9 +925,18 @@ final class TransactionServerChannel {
         if (securityIdentity == null) {
             return;
         }
+        final int finalTimeout = timeout;
+        final long finalDeadline = deadline;
+        final boolean finalHasDeadline = hasDeadline;
+        final int finalXidHandle = xidHandle;
         securityIdentity.runAsObjIntConsumer((x, i) -> {
+            if (finalHasDeadline && System.nanoTime() - finalDeadline >= 0) {
+                // the caller has already given up on this transaction; it will be rolled back
+                writeExceptionResponse(M_RESP_XA_PREPARE, i, log.deadlinePassedXa(XAException.XAER_RMFAIL, x));
+                return;
+            }
             try {
-                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, true);
+                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, finalTimeout, true);
                 if (importResult == null) {
                     writeExceptionResponse(M_RESP_XA_PREPARE, invId, new XAException(XAException.XAER_NOTA));
                     return;
@@ -503,12 +944,16 @@ final class TransactionServerChannel {
                 // run operation while associated
                 int result = ! importResult.getTransaction().isImported() ? XAResource.XA_RDONLY : importResult.getControl().prepare();
                 if (result == XAResource.XA_RDONLY) {
+                    releaseXidHandle(finalXidHandle);
                     writeSimpleResponse(M_RESP_XA_PREPARE, i, P_XA_RDONLY);
                 } else {
                     // XA_OK
                     writeSimpleResponse(M_RESP_XA_PREPARE, i);
                 }
             } catch (XAException e) {
+                if (e.errorCode >= XAException.XA_RBBASE && e.errorCode <= XAException.XA_RBEND) {
+                    releaseXidHandle(finalXidHandle);
+                }
                 writeExceptionResponse(M_RESP_XA_PREPARE, i, e);
                 return;
             } catch (Exception e) {
@@ -520,15 +965,23 @@ final class TransactionServerChannel {
         }, xid, invId);
     }
 
-    void handleXaTxnForget(final MessageInputStream message, final int invId) throws IOException {
+    void handleXaTxnBeforePrepare(final InputStream message, final int invId) throws IOException {
         int param;
         int len;
         SimpleXid xid = null;
+        int xidHandle = -1;
         int secContext = 0;
         boolean hasSecContext = false;
+        int timeout = 0;
+        long deadline = 0;
+        boolean hasDeadline = false;
         while ((param = message.read()) != - 1) {
             len = StreamUtils.readPackedUnsignedInt32(message);
             switch (param) {
+                case P_XID_HANDLE: {
+                    xidHandle = readIntParam(message, len);
+                    break;
+                }
                 case P_XID: {
                     xid = readXid(message, len);
                     break;
@@ -538,52 +991,146 @@ final class TransactionServerChannel {
                     hasSecContext = true;
                     break;
                 }
+                case P_TIME_REMAINING: {
+                    final int remaining = readIntParam(message, len);
+                    deadline = System.nanoTime() + remaining * 1_000_000_000L;
+                    timeout = Math.max(1, remaining);
+                    hasDeadline = true;
+                    break;
+                }
                 default: {
                     // ignore bad parameter
                     readIntParam(message, len);
                 }
             }
         }
+        xid = resolveXid(xid, xidHandle, false);
         if (xid == null) {
             writeParamError(invId);
             return;
         }
-        SecurityIdentity securityIdentity = getSecurityIdentity(M_RESP_XA_FORGET, invId, secContext, hasSecContext);
+        SecurityIdentity securityIdentity = getSecurityIdentity(M_RESP_XA_BEFORE_PREPARE, invId, secContext, hasSecContext);
         if (securityIdentity == null) {
             return;
         }
+        final int finalTimeout = timeout;
+        final long finalDeadline = deadline;
+        final boolean finalHasDeadline = hasDeadline;
+        final int finalXidHandle = xidHandle;
         securityIdentity.runAsObjIntConsumer((x, i) -> {
+            if (finalHasDeadline && System.nanoTime() - finalDeadline >= 0) {
+                // the caller has already given up on this transaction; it will be rolled back
+                writeExceptionResponse(M_RESP_XA_BEFORE_PREPARE, i, log.deadlinePassedXa(XAException.XAER_RMFAIL, x));
+                return;
+            }
             try {
-                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, true);
+                final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, finalTimeout, true);
                 if (importResult == null) {
-                    writeExceptionResponse(M_RESP_XA_FORGET, i, new XAException(XAException.XAER_NOTA));
+                    writeExceptionResponse(M_RESP_XA_BEFORE_PREPARE, i, new XAException(XAException.XAER_NOTA));
                     return;
                 }
-                // run operation while associated
-                importResult.getControl().forget();
-                writeSimpleResponse(M_RESP_XA_FORGET, i);
+                // run before-completion while associated, then prepare
+                importResult.getTransaction().performConsumer(SubordinateTransactionControl::beforeCompletion, importResult.getControl());
+                int result = ! importResult.getTransaction().isImported() ? XAResource.XA_RDONLY : importResult.getControl().prepare();
+                if (result == XAResource.XA_RDONLY) {
+                    releaseXidHandle(finalXidHandle);
+                    writeSimpleResponse(M_RESP_XA_BEFORE_PREPARE, i, P_XA_RDONLY);
+                } else {
+                    // XA_OK
+                    writeSimpleResponse(M_RESP_XA_BEFORE_PREPARE, i);
+                }
             } catch (XAException e) {
-                writeExceptionResponse(M_RESP_XA_FORGET, i, e);
+                if (e.errorCode >= XAException.XA_RBBASE && e.errorCode <= XAException.XA_RBEND) {
+                    releaseXidHandle(finalXidHandle);
+                }
+                writeExceptionResponse(M_RESP_XA_BEFORE_PREPARE, i, e);
                 return;
             } catch (Exception e) {
                 final XAException xae = new XAException(XAException.XAER_RMERR);
                 xae.initCause(e);
-                writeExceptionResponse(M_RESP_XA_FORGET, i, xae);
+                writeExceptionResponse(M_RESP_XA_BEFORE_PREPARE, i, xae);
                 return;
             }
         }, xid, invId);
     }
 
-    void handleXaTxnCommit(final MessageInputStream message, final int invId) throws IOException {
+    void handleXaTxnForget(final InputStream message, final int invId) throws IOException {
         int param;
         int len;
         SimpleXid xid = null;
+        int xidHandle = -1;
+        int secContext = 0;
+        boolean hasSecContext = false;
+        while ((param = message.read()) != - 1) {
+            len = StreamUtils.readPackedUnsignedInt32(message);
+            switch (param) {
+                case P_XID_HANDLE: {
+                    xidHandle = readIntParam(message, len);
+                    break;
+                }
+                case P_XID: {
+                    xid = readXid(message, len);
+                    break;
+                }
+                case P_SEC_CONTEXT: {
+                    secContext = readIntParam(message, len);
+                    hasSecContext = true;
+                    break;
+                }
+                default: {
+                    // ignore bad parameter
+                    readIntParam(message, len);
+                }
+            }
+        }
+        xid = resolveXid(xid, xidHandle, true);
+        if (xid == null) {
+            writeParamError(invId);
+            return;
+        }
+        SecurityIdentity securityIdentity = getSecurityIdentity(M_RESP_XA_FORGET, invId, secContext, hasSecContext);
+        if (securityIdentity == null) {
+            return;
+        }
+        securityIdentity.runAsObjIntConsumer(xaForget, xid, invId);
+    }
+
+    private void xaForget(final SimpleXid x, final int i) {
+        try {
+            final ImportResult<LocalTransaction> importResult = localTransactionContext.findOrImportTransaction(x, 0, true);
+            if (importResult == null) {
+                writeExceptionResponse(M_RESP_XA_FORGET, i, new XAException(XAException.XAER_NOTA));
+                return;
+            }
+            // run operation while associated
+            importResult.getControl().forget();
+            writeSimpleResponse(M_RESP_XA_FORGET, i);
+        } catch (XAException e) {
+            writeExceptionResponse(M_RESP_XA_FORGET, i, e);
+            return;
+        } catch (Exception e) {
+            final XAException xae = new XAException(XAException.XAER_RMERR);
+            xae.initCause(e);
+            writeExceptionResponse(M_RESP_XA_FORGET, i, xae);
+            return;
+        }
+    }
+
+    void handleXaTxnCommit(final InputStream message, final int invId) throws IOException {
+        int param;
+        int len;
+        SimpleXid xid = null;
+        int xidHandle = -1;
         int secContext = 0;
         boolean hasSecContext = false;
         boolean onePhase = false;
         while ((param = message.read()) != - 1) {
             len = StreamUtils.readPackedUnsignedInt32(message);
             switch (param) {
+                case P_XID_HANDLE: {
+                    xidHandle = readIntParam(message, len);
+                    break;
+                }
                 case P_XID: {
                     xid = readXid(message, len);
                     break;
@@ -604,6 +1151,7 @@ final class TransactionServerChannel {
                 }
             }
         }
+        xid = resolveXid(xid, xidHandle, true);
         if (xid == null) {
             writeParamError(invId);
             return;
@@ -635,12 +1183,15 @@ final class TransactionServerChannel {
         }, Boolean.valueOf(onePhase), xid);
     }
 
-    void handleXaTxnRecover(final MessageInputStream message, final int invId) throws IOException {
+    void handleXaTxnRecover(final InputStream message, final int invId) throws IOException {
         int param;
         int len;
         int secContext = 0;
         String parentName = null;
         boolean hasSecContext = false;
+        int flags = 0;
+        int scanId = -1;
+        boolean paged = false;
         while ((param = message.read()) != - 1) {
             len = StreamUtils.readPackedUnsignedInt32(message);
             switch (param) {
@@ -653,6 +1204,15 @@ final class TransactionServerChannel {
                     parentName = readStringParam(message, len);
                     break;
                 }
+                case P_RECOVER_FLAGS: {
+                    flags = readIntParam(message, len);
+                    paged = true;
+                    break;
+                }
+                case P_RECOVER_SCAN: {
+                    scanId = readIntParam(message, len);
+                    break;
+                }
                 default: {
                     // ignore bad parameter
                     readIntParam(message, len);
@@ -664,6 +1224,12 @@ final class TransactionServerChannel {
             return;
         }
         final String finalParentName = parentName;
+        if (paged) {
+            final int finalFlags = flags;
+            final int finalScanId = scanId;
+            securityIdentity.runAs(() -> handleXaTxnRecoverPage(invId, finalParentName, finalFlags, finalScanId));
+            return;
+        }
         securityIdentity.runAs(() -> {
             final XARecoverable recoverable = localTransactionContext.getRecoveryInterface();
             Xid[] xids;
@@ -674,7 +1240,7 @@ final class TransactionServerChannel {
                 writeExceptionResponse(M_RESP_XA_RECOVER, invId, e);
                 return;
             }
-            try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
+            try (final MessageOutputStream outputStream = openResponse()) {
                 outputStream.writeShort(invId);
                 outputStream.writeByte(M_RESP_XA_RECOVER);
                 // maintain a "seen" set as some transaction managers don't treat recovery scanning as a cursor...
@@ -734,24 +1300,133 @@ final class TransactionServerChannel {
         });
     }
 
+    /**
+     * Answer one page of a paged recovery scan.  A scan is started by a request with {@code TMSTARTRSCAN}, which is
+     * answered with the ID of the scan if it has further pages; the requests which continue or end the scan refer
+     * to it by that ID, so that several scans of one client can be open at once.
+     *
+     * @param invId the invocation ID
+     * @param parentName the parent node name
+     * @param flags the scan flags
+     * @param scanId the ID of the scan to continue, or -1 if none was given
+     */
+    void handleXaTxnRecoverPage(final int invId, final String parentName, final int flags, final int scanId) {
+        final boolean start = (flags & XAResource.TMSTARTRSCAN) != 0;
+        RecoveryScan scan = null;
+        int id = scanId;
+        synchronized (recoveryScans) {
+            if (! start) {
+                scan = recoveryScans.get(Integer.valueOf(scanId));
+            } else if (recoveryScans.size() < MAX_RECOVERY_SCANS) {
+                id = nextScanId++ & 0x7fffffff;
+                scan = new RecoveryScan(localTransactionContext.getRecoveryInterface(), parentName);
+                recoveryScans.put(Integer.valueOf(id), scan);
+            }
+        }
+        if (scan == null) {
+            // too many scans are open, or no scan was started
+            writeExceptionResponse(M_RESP_XA_RECOVER, invId, new XAException(start ? XAException.XAER_RMFAIL : XAException.XAER_PROTO));
+            return;
+        }
+        final Xid[] page;
+        final boolean more;
+        if (! start && (flags & XAResource.TMENDRSCAN) != 0) {
+            // the client just ends the scan; don't pull XIDs which it won't look at
+            page = SimpleXid.NO_XIDS;
+            more = false;
+        } else try {
+            synchronized (scan) {
+                page = scan.nextPage();
+                more = ! scan.isDone() && (flags & XAResource.TMENDRSCAN) == 0;
+            }
+        } catch (XAException e) {
+            removeRecoveryScan(id, scan);
+            writeExceptionResponse(M_RESP_XA_RECOVER, invId, e);
+            return;
+        }
+        if (! more) {
+            removeRecoveryScan(id, scan);
+        }
+        try (final MessageOutputStream outputStream = openResponse()) {
+            outputStream.writeShort(invId);
+            outputStream.writeByte(M_RESP_XA_RECOVER);
+            for (final Xid xid : page) {
+                writeParam(P_XID, outputStream, xid);
+            }
+            if (more) {
+                writeParam(P_RECOVER_MORE, outputStream);
+                writeParam(P_RECOVER_SCAN, outputStream, id, UNSIGNED);
+            }
+        } catch (IOException e) {
+            log.outboundException(e);
+            removeRecoveryScan(id, scan);
+        }
+    }
+
+    private void removeRecoveryScan(final int id, final RecoveryScan scan) {
+        synchronized (recoveryScans) {
+            recoveryScans.remove(Integer.valueOf(id), scan);
+        }
+        scan.end();
+    }
+
+    private void endRecoveryScans() {
+        final RecoveryScan[] scans;
+        synchronized (recoveryScans) {
+            scans = recoveryScans.values().toArray(new RecoveryScan[recoveryScans.size()]);
+            recoveryScans.clear();
+        }
+        for (RecoveryScan scan : scans) {
+            scan.end();
+        }
+    }
+
     private SecurityIdentity getSecurityIdentity(int msgId, int invId, int secContext, boolean hasSecContext) {
         SecurityIdentity securityIdentity;
         if (hasSecContext) {
             securityIdentity = channel.getConnection().getLocalIdentity(secContext);
         } else {
             securityIdentity = channel.getConnection().getLocalIdentity();
+            secContext = NO_SEC_CONTEXT;
         }
-        if(!securityIdentity.implies(RemoteTransactionPermission.getInstance())) {
+        if (! isAuthorized(secContext, securityIdentity)) {
             writeExceptionResponse(msgId, invId, P_SEC_EXC, log.noPermission(securityIdentity.getPrincipal().getName(), RemoteTransactionPermission.getInstance()));
             return null;
         }
         return securityIdentity;
     }
 
+    /**
+     * Determine whether the given identity may use remote transactions.  The decision is cached for the security
+     * context; it is recomputed whenever the identity of the context has changed.
+     *
+     * @param secContext the security context ID, or {@link #NO_SEC_CONTEXT} for the connection identity
+     * @param securityIdentity the identity of the security context
+     * @return {@code true} if the identity is authorized, {@code false} otherwise
+     */
+    private boolean isAuthorized(final int secContext, final SecurityIdentity securityIdentity) {
+        final Integer key = Integer.valueOf(secContext);
+        final PermissionDecision cached = permissionDecisions.get(key);
+        if (cached != null && cached.securityIdentity == securityIdentity) {
+            return cached.authorized;
+        }
+        final boolean authorized = securityIdentity.implies(RemoteTransactionPermission.getInstance());
+        if (cached == null && permissionDecisions.size() >= MAX_PERMISSION_DECISIONS) {
+            permissionDecisions.clear();
+        }
+        permissionDecisions.put(key, new PermissionDecision(securityIdentity, authorized));
+        return authorized;
+    }
+
     ///////////////////////////////////////////////////////////////
 
+    private MessageOutputStream openResponse() throws IOException {
+        final BatchResponse.Entry batchEntry = currentBatchEntry.get();
+        return batchEntry == null ? messageTracker.openMessageUninterruptibly() : batchEntry.open();
+    }
+
     void writeSimpleResponse(final int msgId, final int invId, final int param1) {
-        try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
+        try (final MessageOutputStream outputStream = openResponse()) {
             outputStream.writeShort(invId);
             outputStream.writeByte(msgId);
             writeParam(param1, outputStream);
@@ -761,40 +1436,35 @@ final class TransactionServerChannel {
     }
 
     private void writeExceptionResponse(final int msgId, final int invId, final int exceptionKind, final Exception e) {
-        try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
-            outputStream.writeShort(invId);
-            outputStream.writeByte(msgId);
-            writeInt8(outputStream, exceptionKind);
-            final RemoteExceptionCause remoteExceptionCause = RemoteExceptionCause.of(e);
-            final ByteArrayOutputStream os = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(os);
-            remoteExceptionCause.writeToStream(dos);
-            dos.flush();
-            writePackedUnsignedInt31(outputStream, os.size());
-            os.writeTo(outputStream);
+        try (MessageBuffer buffer = MessageBuffer.get()) {
+            RemoteExceptionCause.of(e).writeToStream(buffer.getDataOutput());
+            writeExceptionResponse(msgId, invId, exceptionKind, buffer);
         } catch (IOException ioe) {
             log.outboundException(ioe);
         }
     }
 
     private void writeExceptionResponse(final int msgId, final int invId, final int exceptionKind, final Exception e, int errorCode) {
-        try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
-            outputStream.writeShort(invId);
-            outputStream.writeByte(msgId);
-            writeInt8(outputStream, exceptionKind);
-            final RemoteExceptionCause remoteExceptionCause = RemoteExceptionCause.of(e);
-            final ByteArrayOutputStream os = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(os);
+        try (MessageBuffer buffer = MessageBuffer.get()) {
+            final DataOutputStream dos = buffer.getDataOutput();
             dos.writeInt(errorCode);
-            remoteExceptionCause.writeToStream(dos);
-            dos.flush();
-            writePackedUnsignedInt31(outputStream, os.size());
-            os.writeTo(outputStream);
+            RemoteExceptionCause.of(e).writeToStream(dos);
+            writeExceptionResponse(msgId, invId, exceptionKind, buffer);
         } catch (IOException ioe) {
             log.outboundException(ioe);
         }
     }
 
+    private void writeExceptionResponse(final int msgId, final int invId, final int exceptionKind, final MessageBuffer body) throws IOException {
+        try (final MessageOutputStream outputStream = openResponse()) {
+            outputStream.writeShort(invId);
+            outputStream.writeByte(msgId);
+            writeInt8(outputStream, exceptionKind);
+            writePackedUnsignedInt31(outputStream, body.size());
+            body.writeTo(outputStream);
+        }
+    }
+
     private void writeExceptionResponse(final int msgId, final int invId, final SystemException e) {
         writeExceptionResponse(msgId, invId, P_UT_SYS_EXC, e, e.errorCode);
     }
@@ -804,7 +1474,7 @@ final class TransactionServerChannel {
     }
 
     void writeSimpleResponse(final int msgId, final int invId) {
-        try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
+        try (final MessageOutputStream outputStream = openResponse()) {
             outputStream.writeShort(invId);
             outputStream.writeByte(msgId);
         } catch (IOException e) {
@@ -813,11 +1483,197 @@ final class TransactionServerChannel {
     }
 
     void writeParamError(final int invId) {
-        try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
+        try (final MessageOutputStream outputStream = openResponse()) {
             outputStream.writeShort(invId);
             outputStream.writeByte(M_RESP_PARAM_ERROR);
         } catch (IOException e) {
             log.outboundException(e);
         }
     }
+
+    /**
+     * The cached outcome of the remote transaction permission check for the identity of a security context.
+     */
+    static final class PermissionDecision {
+        final SecurityIdentity securityIdentity;
+        final boolean authorized;
+
+        PermissionDecision(final SecurityIdentity securityIdentity, final boolean authorized) {
+            this.securityIdentity = securityIdentity;
+            this.authorized = authorized;
+        }
+    }
+
+    /**
+     * The state of a paged recovery scan.  The XIDs returned by the recovery interface are handed out a page at a
+     * time; a "seen" set is maintained as some transaction managers don't treat recovery scanning as a cursor, and
+     * once a scan request adds nothing to it the underlying scan is ended.
+     */
+    static final class RecoveryScan {
+        private final XARecoverable recoverable;
+        private final String parentName;
+        private final Set<SimpleXid> seen = new HashSet<>();
+        private final ArrayDeque<Xid> pending = new ArrayDeque<>();
+        private boolean started;
+        private boolean exhausted;
+        private boolean ended;
+
+        RecoveryScan(final XARecoverable recoverable, final String parentName) {
+            this.recoverable = recoverable;
+            this.parentName = parentName;
+        }
+
+        Xid[] nextPage() throws XAException {
+            final ArrayList<Xid> page = new ArrayList<>();
+            while (page.size() < RECOVER_PAGE_SIZE) {
+                final Xid xid = pending.poll();
+                if (xid != null) {
+                    page.add(xid);
+                } else if (ended) {
+                    break;
+                } else {
+                    fill();
+                }
+            }
+            return page.toArray(SimpleXid.NO_XIDS);
+        }
+
+        boolean isDone() {
+            return ended && pending.isEmpty();
+        }
+
+        private void fill() throws XAException {
+            final Xid[] xids;
+            if (! started) {
+                started = true;
+                xids = recoverable.recover(XAResource.TMSTARTRSCAN, parentName);
+            } else if (! exhausted) {
+                xids = recoverable.recover(XAResource.TMNOFLAGS, parentName);
+            } else {
+                ended = true;
+                xids = recoverable.recover(XAResource.TMENDRSCAN, parentName);
+            }
+            boolean added = false;
+            for (final Xid xid : xids) {
+                if (seen.add(SimpleXid.of(xid).withoutBranch())) {
+                    added = true;
+                    pending.add(xid);
+                }
+            }
+            if (! added) {
+                exhausted = true;
+            }
+        }
+
+        synchronized void end() {
+            pending.clear();
+            if (started && ! ended) {
+                ended = true;
+                try {
+                    recoverable.recover(XAResource.TMENDRSCAN, parentName);
+                } catch (XAException e) {
+                    log.recoverySuppressedException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The response to a batch request.  Each entry response is buffered as it is written, and the whole batch is
+     * answered once every entry has been answered.
+     */
+    final class BatchResponse {
+        private final int invId;
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        // protected by {@code this}; one for the request itself, plus one per entry which is still being handled
+        private int outstanding = 1;
+
+        BatchResponse(final int invId) {
+            this.invId = invId;
+        }
+
+        void expectEntry() {
+            synchronized (this) {
+                outstanding ++;
+            }
+        }
+
+        void entryDone() {
+            synchronized (this) {
+                if (-- outstanding > 0) {
+                    return;
+                }
+            }
+            try (final MessageOutputStream outputStream = messageTracker.openMessageUninterruptibly()) {
+                outputStream.writeShort(invId);
+                outputStream.writeByte(M_RESP_BATCH);
+                synchronized (this) {
+                    entries.writeTo(outputStream);
+                }
+            } catch (IOException e) {
+                log.outboundException(e);
+            }
+        }
+
+        /**
+         * An entry of the batch, which is handled by one thread.
+         */
+        final class Entry {
+            private boolean answered;
+
+            Entry() {
+            }
+
+            MessageOutputStream open() {
+                answered = true;
+                return new EntryOutputStream();
+            }
+
+            boolean isAnswered() {
+                return answered;
+            }
+        }
+
+        final class EntryOutputStream extends MessageOutputStream {
+            private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            private boolean done;
+
+            EntryOutputStream() {
+            }
+
+            public void write(final int b) {
+                buffer.write(b);
+            }
+
+            public void write(final byte[] b, final int off, final int len) {
+                buffer.write(b, off, len);
+            }
+
+            public void flush() {
+            }
+
+            public void close() throws IOException {
+                if (done) {
+                    return;
+                }
+                done = true;
+                try {
+                    synchronized (BatchResponse.this) {
+                        writeParam(P_BATCH_ENTRY, entries, buffer.toByteArray());
+                    }
+                } finally {
+                    entryDone();
+                }
+            }
+
+            public MessageOutputStream cancel() {
+                if (! done) {
+                    // the client fails any entry which is missing from the response
+                    done = true;
+                    entryDone();
+                }
+                return this;
+            }
+        }
+    }
 }
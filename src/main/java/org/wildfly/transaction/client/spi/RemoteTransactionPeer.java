@@ -41,6 +41,21 @@ public interface RemoteTransactionPeer {
     @NotNull
     SubordinateTransactionControl lookupXid(Xid xid) throws XAException;
 
+    /**
+     * Look up an outflow handle for a remote transaction with the given XID, as for {@link #lookupXid(Xid)}.  The
+     * remaining time of the transaction may be passed on to the remote side, so that it does not keep working on the
+     * transaction after the caller has given up on it.  The default implementation ignores the remaining time.
+     *
+     * @param xid the transaction ID
+     * @param remainingTime the remaining time of the transaction in seconds, or -1 if it is not known
+     * @return the handle for the remote transaction
+     * @throws XAException if the lookup failed for some reason
+     */
+    @NotNull
+    default SubordinateTransactionControl lookupXid(Xid xid, int remainingTime) throws XAException {
+        return lookupXid(xid);
+    }
+
     /**
      * Acquire a list of all unresolved subordinate transactions from the location associated with this provider.
      *
@@ -18,9 +18,13 @@
 
 package org.wildfly.transaction.client.spi;
 
+import java.util.concurrent.CompletionStage;
+
 import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
 
+import org.wildfly.transaction.client._private.Stages;
+
 /**
  * The control interface for subordinate transactions.  This interface is used in the following cases:
  * <ul>
@@ -166,6 +170,92 @@ public interface SubordinateTransactionControl {
      */
     void commit(boolean onePhase) throws XAException;
 
+    /**
+     * Asynchronously roll back the subordinate.  The returned stage is completed exceptionally with an
+     * {@code XAException} (with one of the error codes given for {@link #rollback()}) if an error occurs.  The
+     * default implementation delegates to {@link #rollback()}.
+     *
+     * @return the completion stage of the operation (not {@code null})
+     */
+    default CompletionStage<Void> rollbackAsync() {
+        return Stages.completed(() -> {
+            rollback();
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronously perform before-commit operations.  The default implementation delegates to
+     * {@link #beforeCompletion()}.
+     *
+     * @return the completion stage of the operation (not {@code null})
+     */
+    default CompletionStage<Void> beforeCompletionAsync() {
+        return Stages.completed(() -> {
+            beforeCompletion();
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronously prepare the transaction.  The default implementation delegates to {@link #prepare()}.
+     *
+     * @return the completion stage of the operation, yielding {@link XAResource#XA_OK} or {@link XAResource#XA_RDONLY}
+     *  (not {@code null})
+     */
+    default CompletionStage<Integer> prepareAsync() {
+        return Stages.completed(() -> Integer.valueOf(prepare()));
+    }
+
+    /**
+     * Asynchronously forget the (previously prepared) transaction.  The default implementation delegates to
+     * {@link #forget()}.
+     *
+     * @return the completion stage of the operation (not {@code null})
+     */
+    default CompletionStage<Void> forgetAsync() {
+        return Stages.completed(() -> {
+            forget();
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronously commit the transaction.  The default implementation delegates to {@link #commit(boolean)}.
+     *
+     * @param onePhase {@code true} to commit in a single phase, {@code false} to commit after prepare
+     * @return the completion stage of the operation (not {@code null})
+     */
+    default CompletionStage<Void> commitAsync(boolean onePhase) {
+        return Stages.completed(() -> {
+            commit(onePhase);
+            return null;
+        });
+    }
+
+    /**
+     * Determine whether {@link #beforeCompletionAndPrepareAsync()} performs both of its steps as one operation.  If so,
+     * callers may defer before-commit processing until the transaction is prepared.  The default implementation
+     * returns {@code false}.
+     *
+     * @return {@code true} if before-completion and prepare are combined, {@code false} otherwise
+     */
+    default boolean isCombinedPrepareSupported() {
+        return false;
+    }
+
+    /**
+     * Asynchronously perform before-commit operations and then prepare the transaction.  If before-commit processing
+     * fails, the transaction is not prepared.  The default implementation runs {@link #beforeCompletionAsync()}
+     * followed by {@link #prepareAsync()}.
+     *
+     * @return the completion stage of the operation, yielding {@link XAResource#XA_OK} or
+     *  {@link XAResource#XA_RDONLY} (not {@code null})
+     */
+    default CompletionStage<Integer> beforeCompletionAndPrepareAsync() {
+        return beforeCompletionAsync().thenCompose(ignored -> prepareAsync());
+    }
+
     /**
      * An empty subordinate transaction controller.
      */